@@ -0,0 +1,231 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.utils.DresdenUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Checks a long distance freight population for malfunctions.
+ * After long distance freight pop creation, every person should have exactly 1 plan with 3 plan elements: act0 - leg - act1, both activities with coordinates.
+ * If the population has no malfunctions, a summary of the freight trips is written.
+ * Summary rows are written in the same pass as the check, in input order, into a temporary file, which is kept only if the population is valid.
+ * Like before, the summary is taken from the selected plan, and persons with more than one plan do not invalidate the population.
+ * Rows of persons with malfunctions are additionally written into a spill file with a bounded number of rows, for inspection only.
+ */
+public final class LongDistanceFreightCheck implements PopulationCheck {
+	private static final Logger log = LogManager.getLogger(LongDistanceFreightCheck.class);
+
+	private static final String[] HEADER = {"trip_id", "from_x", "from_y", "to_x", "to_y"};
+
+	private final Path summaryTsv;
+	private final boolean freightSubpopulationOnly;
+	private final int maxSpillRows;
+
+	private CSVPrinter summary;
+	private Path summaryTmp;
+	private CSVPrinter spill;
+	private Path spillTsv;
+	private int spillRows;
+	private boolean spillOverflow;
+	private int unsummarizable;
+
+	private int personCount;
+	private int plansCount;
+	private int planElementsCount;
+	private int actCount;
+	private int legCount;
+	private int coordCount;
+
+	/**
+	 * Create the check.
+	 *
+	 * @param summaryTsv               path of the trip summary, which is written if the population is valid. May be null.
+	 * @param freightSubpopulationOnly only check persons of the long distance freight subpopulation, e.g. when checking a merged population
+	 * @param maxSpillRows             max number of rows of persons with malfunctions, which are kept in the spill file
+	 */
+	public LongDistanceFreightCheck(Path summaryTsv, boolean freightSubpopulationOnly, int maxSpillRows) {
+		this.summaryTsv = summaryTsv;
+		this.freightSubpopulationOnly = freightSubpopulationOnly;
+		this.maxSpillRows = maxSpillRows;
+	}
+
+	@Override
+	public String getName() {
+		return "long-distance-freight";
+	}
+
+	@Override
+	public void visit(Person p) {
+		if (freightSubpopulationOnly && !DresdenUtils.LONG_DIST_FREIGHT_SUBPOP.equals(PopulationUtils.getSubpopulation(p))) {
+			return;
+		}
+		personCount++;
+
+		if (p.getPlans().size() != 1) {
+			log.info("Person {} has {} plans, but should only have one.", p.getId(), p.getPlans().size());
+			plansCount++;
+		}
+
+		Plan plan = p.getPlans().getFirst();
+		boolean malfunction = false;
+
+		if (plan.getPlanElements().size() != 3) {
+			log.info("Plan of person {} has {} plan elements, but should have exactly 3.",
+				p.getId(), plan.getPlanElements().size());
+			planElementsCount++;
+			malfunction = true;
+		} else {
+			PlanElement act0 = plan.getPlanElements().getFirst();
+			PlanElement leg = plan.getPlanElements().get(1);
+			PlanElement act1 = plan.getPlanElements().get(2);
+
+			for (PlanElement el : List.of(act0, act1)) {
+				if (!(el instanceof Activity act)) {
+					log.info("Plan element at index {} for person {} should be of type activity, but it is not.",
+						plan.getPlanElements().indexOf(el), p.getId());
+					actCount++;
+					malfunction = true;
+				} else {
+					if (act.getCoord() == null) {
+						log.info("Activity at plan element list index {} for person {} does not have a coordinate, but should have one.",
+							plan.getPlanElements().indexOf(el), p.getId());
+						coordCount++;
+						malfunction = true;
+					}
+				}
+			}
+
+			if (!(leg instanceof Leg)) {
+				log.info("Plan element at index {} for person {} should be of type leg, but it is not.",
+					plan.getPlanElements().indexOf(leg), p.getId());
+				legCount++;
+				malfunction = true;
+			}
+		}
+
+		if (summaryTsv == null) {
+			return;
+		}
+
+//		the summary row is taken from the selected plan, like in the summary before
+		List<PlanElement> selected = p.getSelectedPlan() == null ? List.of() : p.getSelectedPlan().getPlanElements();
+		Coord from = selected.size() > 2 && selected.get(0) instanceof Activity act ? act.getCoord() : null;
+		Coord to = selected.size() > 2 && selected.get(2) instanceof Activity act ? act.getCoord() : null;
+
+		if (malfunction) {
+			writeSpill(p.getId().toString(), from, to);
+		} else if (from == null || to == null) {
+			unsummarizable++;
+		} else {
+			writeSummary(p.getId().toString(), from, to);
+		}
+	}
+
+	private void writeSummary(String id, Coord from, Coord to) {
+		try {
+			if (summary == null) {
+				summaryTmp = summaryTsv.resolveSibling(summaryTsv.getFileName() + ".tmp");
+				summary = new CSVPrinter(Files.newBufferedWriter(summaryTmp), CSVFormat.TDF);
+				summary.printRecord((Object[]) HEADER);
+			}
+			summary.printRecord(id, from.getX(), from.getY(), to.getX(), to.getY());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Rows of persons with malfunctions, for inspection. Coordinates are empty if they are missing.
+	 */
+	private void writeSpill(String id, Coord from, Coord to) {
+		if (spillRows >= maxSpillRows) {
+			spillOverflow = true;
+			return;
+		}
+		try {
+			if (spill == null) {
+				spillTsv = summaryTsv.resolveSibling(summaryTsv.getFileName().toString().replace(".tsv", "") + "-invalid.tsv");
+				spill = new CSVPrinter(Files.newBufferedWriter(spillTsv), CSVFormat.TDF);
+				spill.printRecord((Object[]) HEADER);
+			}
+			spill.printRecord(id, from == null ? "" : from.getX(), from == null ? "" : from.getY(), to == null ? "" : to.getX(), to == null ? "" : to.getY());
+			spillRows++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Keep the trip summary, if the population is valid.
+	 * The summary is the same as in ExtractRelevantFreightTrips. It is created in post-processing due to errors in ExtractRelevantFreightTrips,
+	 * which create activities for transit trips without coords.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (summary != null) {
+			summary.close();
+		}
+		if (spill != null) {
+			spill.close();
+		}
+		if (summaryTsv == null) {
+			return;
+		}
+
+		if (!isValid()) {
+			if (summaryTmp != null) {
+				Files.delete(summaryTmp);
+			}
+			log.warn("No summary of long distance freight trips written. Rows of {} persons with malfunctions are written to {}{}.", spillRows, spillTsv,
+				spillOverflow ? ", further rows have been dropped" : "");
+			return;
+		}
+
+		if (unsummarizable > 0) {
+			throw new IllegalStateException("The selected plans of " + unsummarizable + " persons cannot be summarized, as they are not of the form act - leg - act with coordinates.");
+		}
+
+		if (summaryTmp == null) {
+			summaryTmp = summaryTsv.resolveSibling(summaryTsv.getFileName() + ".tmp");
+			try (CSVPrinter tsvWriter = new CSVPrinter(Files.newBufferedWriter(summaryTmp), CSVFormat.TDF)) {
+				tsvWriter.printRecord((Object[]) HEADER);
+			}
+		}
+
+		Files.move(summaryTmp, summaryTsv, StandardCopyOption.REPLACE_EXISTING);
+		log.info("Summary of long distance freight trips written to {}", summaryTsv);
+	}
+
+	@Override
+	public boolean isValid() {
+		return planElementsCount == 0 && actCount == 0 && legCount == 0 && coordCount == 0;
+	}
+
+	@Override
+	public List<String> getReport() {
+		return List.of(
+			String.format("%d persons out of %d possess != 1 plan(s).", plansCount, personCount),
+			String.format("%d plans have a number of plan elements != 3.", planElementsCount),
+			String.format("%d plan elements should be of type activity, but are not.", actCount),
+			String.format("%d plan elements should be of type leg, but are not.", legCount),
+			String.format("%d activities do not have a coordinate assigned.", coordCount),
+			String.format("%d rows of persons with malfunctions spilled%s.", spillRows, spillOverflow ? ", further rows dropped" : "")
+		);
+	}
+}
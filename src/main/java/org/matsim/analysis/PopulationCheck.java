@@ -0,0 +1,39 @@
+package org.matsim.analysis;
+
+import org.matsim.api.core.v01.population.Person;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Check, which visits every person of a population once. Checks are run by {@link PopulationCheckRunner}.
+ * Every check runs on its own thread and visits the persons in the order of the population file. Checks must not modify the persons.
+ */
+public interface PopulationCheck {
+
+	/**
+	 * Name of the check used in the report.
+	 */
+	String getName();
+
+	/**
+	 * Check one person.
+	 */
+	void visit(Person person);
+
+	/**
+	 * Called after the last person has been visited.
+	 */
+	default void finish() throws IOException {
+	}
+
+	/**
+	 * Whether the population passed the check. Only valid after {@link #finish()}.
+	 */
+	boolean isValid();
+
+	/**
+	 * Lines of the report of this check. Only valid after {@link #finish()}.
+	 */
+	List<String> getReport();
+}
@@ -0,0 +1,152 @@
+package org.matsim.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.utils.GzipPopulationIO;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a population once and passes every person to any number of {@link PopulationCheck}s, which run in parallel.
+ * Persons are handed over to the checks in batches through bounded queues, so memory usage does not depend on the population size.
+ */
+public final class PopulationCheckRunner {
+	private static final Logger log = LogManager.getLogger(PopulationCheckRunner.class);
+
+	private static final int BATCH_SIZE = 1_000;
+	private static final int QUEUE_SIZE = 16;
+
+	private PopulationCheckRunner() {
+
+	}
+
+	/**
+	 * Run all checks on the population. Exceptions of checks are rethrown after the population has been read.
+	 */
+	public static Report run(String input, List<? extends PopulationCheck> checks) {
+		Instant start = Instant.now();
+
+		List<Worker> workers = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, checks.size()));
+
+		long[] count = new long[1];
+		try {
+			for (PopulationCheck check : checks) {
+				BlockingQueue<List<Person>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+				workers.add(new Worker(queue, executor.submit(() -> runCheck(check, queue))));
+			}
+
+			StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+			List<List<Person>> batch = new ArrayList<>(List.of(new ArrayList<>(BATCH_SIZE)));
+			reader.addAlgorithm(person -> {
+				count[0]++;
+				batch.getFirst().add(person);
+				if (batch.getFirst().size() == BATCH_SIZE) {
+					put(workers, batch.getFirst());
+					batch.set(0, new ArrayList<>(BATCH_SIZE));
+				}
+			});
+			GzipPopulationIO.readPopulation(reader, input);
+
+			put(workers, batch.getFirst());
+//			an empty batch marks the end of the population
+			put(workers, List.of());
+
+			for (Worker worker : workers) {
+				worker.future().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while checking population.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Population check failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Duration duration = Duration.between(start, Instant.now());
+		Report report = new Report(List.copyOf(checks), count[0], duration);
+		log.info("Checked {} persons with {} check(s) in {} s ({} persons/s).", count[0], checks.size(), duration.toSeconds(), Math.round(report.getThroughput()));
+		return report;
+	}
+
+	private static Void runCheck(PopulationCheck check, BlockingQueue<List<Person>> queue) throws InterruptedException, IOException {
+		while (true) {
+			List<Person> persons = queue.take();
+			if (persons.isEmpty()) {
+				break;
+			}
+			persons.forEach(check::visit);
+		}
+		check.finish();
+		return null;
+	}
+
+	/**
+	 * Pass persons to all checks. Checks, which have failed, are skipped, so that the reader is not blocked by a full queue.
+	 */
+	private static void put(List<Worker> workers, List<Person> persons) {
+		for (Worker worker : workers) {
+			try {
+				while (!worker.future().isDone() && !worker.queue().offer(persons, 1, TimeUnit.SECONDS)) {
+//					wait until the check has processed a batch
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while passing persons to checks.", e);
+			}
+		}
+	}
+
+	private record Worker(BlockingQueue<List<Person>> queue, Future<Void> future) {
+	}
+
+	/**
+	 * Combined result of all checks.
+	 */
+	public record Report(List<PopulationCheck> checks, long persons, Duration duration) {
+
+		/**
+		 * Whether all checks passed.
+		 */
+		public boolean isValid() {
+			return checks.stream().allMatch(PopulationCheck::isValid);
+		}
+
+		/**
+		 * Persons per second.
+		 */
+		public double getThroughput() {
+			return persons / Math.max(0.001, duration.toMillis() / 1000.);
+		}
+
+		/**
+		 * Report lines of all checks, each check starting with its name and result.
+		 */
+		public List<String> getLines() {
+			List<String> lines = new ArrayList<>();
+			lines.add(String.format("Checked %d persons in %d s (%.0f persons/s).", persons, duration.toSeconds(), getThroughput()));
+			for (PopulationCheck check : checks) {
+				lines.add("####################################");
+				lines.add(check.getName() + ": " + (check.isValid() ? "OK" : "FAILED"));
+				lines.addAll(check.getReport());
+			}
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.matsim.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.application.MATSimAppCommand;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+@CommandLine.Command(
+	name = "population-checks",
+	description = "Run several population checks while reading the population only once. The checks run in parallel."
+)
+public class RunPopulationChecks implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(RunPopulationChecks.class);
+
+	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Path to input population")
+	private String input;
+	@CommandLine.Option(names = "--check", description = "Checks to run, all if not set. Possible values: ${COMPLETION-CANDIDATES}")
+	private List<Check> checks = new ArrayList<>();
+	@CommandLine.Option(names = "--freight-summary", description = "Path of the long distance freight trip summary, which is written if the freight check passes.")
+	private Path freightSummary;
+	@CommandLine.Option(names = "--max-spill-rows", defaultValue = "100000", description = "Max number of freight summary rows of persons with malfunctions, which are kept in a spill file.")
+	private int maxSpillRows;
+	@CommandLine.Option(names = "--output", description = "Path of the combined report. Only logged if not set.")
+	private Path output;
+
+	public static void main(String[] args) {
+		new RunPopulationChecks().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		List<Check> selected = checks.isEmpty() ? List.of(Check.values()) : checks;
+
+		List<PopulationCheck> populationChecks = new ArrayList<>();
+		for (Check check : selected) {
+			populationChecks.add(switch (check) {
+				case STAY_HOME_AGENTS -> new StayHomeAgentsCheck();
+//				the population may contain all subpopulations, thus only freight agents are checked
+				case LONG_DISTANCE_FREIGHT -> new LongDistanceFreightCheck(freightSummary, true, maxSpillRows);
+			});
+		}
+
+		PopulationCheckRunner.Report report = PopulationCheckRunner.run(input, populationChecks);
+		report.getLines().forEach(log::info);
+
+		if (output != null) {
+			Files.write(output, report.getLines());
+			log.info("Report written to {}", output);
+		}
+
+		return report.isValid() ? 0 : 1;
+	}
+
+	/**
+	 * Available checks.
+	 */
+	enum Check {STAY_HOME_AGENTS, LONG_DISTANCE_FREIGHT}
+}
@@ -0,0 +1,62 @@
+package org.matsim.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the selected plans for stay home agents. Meaning: agents with only one plan element which is a home activity.
+ * Stay home agents are reported, but do not make the population invalid.
+ */
+public final class StayHomeAgentsCheck implements PopulationCheck {
+	private static final Logger log = LogManager.getLogger(StayHomeAgentsCheck.class);
+
+	private final List<Id<Person>> stayHomeAgents = new ArrayList<>();
+	private int personCount;
+	private int otherSingleActivityCount;
+
+	@Override
+	public String getName() {
+		return "stay-home-agents";
+	}
+
+	@Override
+	public void visit(Person p) {
+		personCount++;
+		if (p.getSelectedPlan().getPlanElements().size() == 1) {
+			if (!(p.getSelectedPlan().getPlanElements().getFirst() instanceof Activity act)) {
+				log.fatal("Person with id {} possesses a plan with 1 element only, which is not an activity! This should never be the case!", p.getId());
+				throw new IllegalStateException();
+			} else {
+				if (act.getType().contains("home")) {
+					stayHomeAgents.add(p.getId());
+				} else {
+					log.error("Person with id {} possesses a plan with 1 element only, which is not a home activity! This should never be the case!", p.getId());
+					otherSingleActivityCount++;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean isValid() {
+		return otherSingleActivityCount == 0;
+	}
+
+	@Override
+	public List<String> getReport() {
+		double share = personCount == 0 ? 0 : (double) stayHomeAgents.size() / personCount;
+
+		List<String> report = new ArrayList<>();
+		report.add(String.format("Out of %d agents, %d are stay home agents. (%s)", personCount, stayHomeAgents.size(), share));
+		report.add(String.format("%d agents have a plan with only one activity, which is not a home activity.", otherSingleActivityCount));
+		report.add("PersonIds of stay home agents:");
+		stayHomeAgents.forEach(id -> report.add(id.toString()));
+		return report;
+	}
+}
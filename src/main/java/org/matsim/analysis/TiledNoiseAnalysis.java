@@ -0,0 +1,331 @@
+package org.matsim.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.ApplicationUtils;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.contrib.noise.NoiseConfigGroup;
+import org.matsim.contrib.noise.NoiseOfflineCalculation;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+@CommandLine.Command(
+	name = "noise-tiled",
+	description = "Noise immission analysis for existing run output, which splits the receiver point grid into tiles to bound the memory usage. " +
+		"Events are replayed once per tile. The outputs of all tiles are merged into one noise-analysis directory."
+)
+public final class TiledNoiseAnalysis implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(TiledNoiseAnalysis.class);
+
+	private static final String NOISE_DIR = "noise-analysis";
+
+	@CommandLine.Option(names = "--run-directory", description = "Path to run output directory.", required = true)
+	private Path runDirectory;
+	@CommandLine.Option(names = "--output", description = "Output directory. Defaults to analysis/noise-tiled in the run directory.")
+	private Path output;
+	@CommandLine.Mixin
+	private final ShpOptions shp = new ShpOptions();
+	@CommandLine.Option(names = "--receiver-point-gap", defaultValue = "250", description = "Distance between receiver points in m.")
+	private double receiverPointGap;
+	@CommandLine.Option(names = "--max-memory", description = "Heap in GB, which may be used by the analysis. Defaults to 3/4 of the max heap of this JVM.")
+	private Double maxMemory;
+	@CommandLine.Option(names = "--memory-per-receiver-point", defaultValue = "50", description = "Estimated heap in kB per receiver point. " +
+		"Depends on the number of links in the relevant radius and the number of time bins.")
+	private double kbPerReceiverPoint;
+	@CommandLine.Option(names = "--parallel", defaultValue = "1", description = "Number of tiles, which are processed concurrently. The memory is split between them.")
+	private int parallel;
+	@CommandLine.Option(names = "--keep-tiles", defaultValue = "false", description = "Keep the output of every tile.")
+	private boolean keepTiles;
+
+	public static void main(String[] args) {
+		new TiledNoiseAnalysis().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		Instant start = Instant.now();
+
+		if (output == null) {
+			output = runDirectory.resolve("analysis").resolve("noise-tiled");
+		}
+		Files.createDirectories(output);
+
+		String configPath = ApplicationUtils.matchInput("config.xml", runDirectory).toString();
+		Network network = NetworkUtils.readNetwork(ApplicationUtils.matchInput("output_network.xml.gz", runDirectory).toString());
+
+		Geometry area = shp.isDefined() ? shp.getGeometry() : null;
+		Envelope bounds = getBounds(ConfigUtils.loadConfig(configPath), network, area);
+
+//		the network is shared by all tiles, only the tiles themselves need to fit into the remaining heap
+		long used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		long ceiling = (long) (maxMemory == null ? Runtime.getRuntime().maxMemory() * 0.75 : maxMemory * 1e9);
+		long available = ceiling - used;
+		if (available < ceiling / 10) {
+			log.warn("Only {} MB of {} MB are left after loading the network. Using very small tiles.", available / 1_000_000, ceiling / 1_000_000);
+			available = ceiling / 10;
+		}
+
+		List<Envelope> tiles = createTiles(bounds, available / Math.max(1, parallel), area);
+		log.info("Processing {} tile(s) with {} thread(s). Bounds: {}", tiles.size(), Math.max(1, parallel), bounds);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallel));
+		List<Path> tileDirs = new ArrayList<>();
+		try {
+			List<Future<?>> jobs = new ArrayList<>();
+			for (int i = 0; i < tiles.size(); i++) {
+				Envelope tile = tiles.get(i);
+				Path tileDir = output.resolve("tiles").resolve("tile_" + i);
+				tileDirs.add(tileDir);
+				int index = i;
+				jobs.add(executor.submit(() -> {
+					Instant tileStart = Instant.now();
+					runTile(configPath, network, tile, tileDir);
+					log.info("Finished tile {}/{} in {} s.", index + 1, tiles.size(), Duration.between(tileStart, Instant.now()).toSeconds());
+					return null;
+				}));
+			}
+
+			for (Future<?> job : jobs) {
+				job.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Noise analysis of a tile failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		merge(tileDirs, output.resolve(NOISE_DIR));
+		if (!keepTiles) {
+			delete(output.resolve("tiles"));
+		}
+
+		log.info("Noise analysis of {} tile(s) written to {} in {} s.", tiles.size(), output.resolve(NOISE_DIR), Duration.between(start, Instant.now()).toSeconds());
+		return 0;
+	}
+
+	/**
+	 * Area of the receiver point grid. Shape file has priority over the grid of the noise config group, the network bounds are used if neither is given.
+	 */
+	private static Envelope getBounds(Config config, Network network, Geometry area) {
+		if (area != null) {
+			return area.getEnvelopeInternal();
+		}
+
+		NoiseConfigGroup noise = ConfigUtils.addOrGetModule(config, NoiseConfigGroup.class);
+		if (noise.getReceiverPointsGridMaxX() != 0. || noise.getReceiverPointsGridMaxY() != 0.) {
+			return new Envelope(noise.getReceiverPointsGridMinX(), noise.getReceiverPointsGridMaxX(),
+				noise.getReceiverPointsGridMinY(), noise.getReceiverPointsGridMaxY());
+		}
+
+		double[] box = NetworkUtils.getBoundingBox(network.getNodes().values());
+		return new Envelope(box[0], box[2], box[1], box[3]);
+	}
+
+	/**
+	 * Split the bounds into square tiles aligned to the receiver point grid, so that every receiver point belongs to exactly one tile.
+	 * Tiles, which do not intersect the given area, are skipped.
+	 */
+	private List<Envelope> createTiles(Envelope bounds, long bytesPerTile, Geometry area) {
+		long pointsPerTile = Math.max(1, (long) (bytesPerTile / (kbPerReceiverPoint * 1000)));
+		long pointsPerSide = Math.max(1, (long) Math.sqrt(pointsPerTile));
+		double side = pointsPerSide * receiverPointGap;
+
+		log.info("Max. {} receiver points per tile, tile size: {} m.", pointsPerSide * pointsPerSide, side);
+
+		List<Envelope> tiles = new ArrayList<>();
+		for (double minX = bounds.getMinX(); minX <= bounds.getMaxX(); minX += side) {
+			for (double minY = bounds.getMinY(); minY <= bounds.getMaxY(); minY += side) {
+//				points on the border of two tiles belong to the next tile
+				Envelope tile = new Envelope(minX, Math.min(minX + side - receiverPointGap / 2, bounds.getMaxX()),
+					minY, Math.min(minY + side - receiverPointGap / 2, bounds.getMaxY()));
+
+				if (area == null || area.intersects(area.getFactory().toGeometry(tile))) {
+					tiles.add(tile);
+				}
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Compute noise immissions for the receiver points of one tile. Damages are not computed, so that the population does not need to be loaded.
+	 */
+	private void runTile(String configPath, Network network, Envelope tile, Path tileDir) throws IOException {
+		Files.createDirectories(tileDir);
+
+		Config config = ConfigUtils.loadConfig(configPath);
+		config.controller().setOutputDirectory(runDirectory.toString());
+
+		NoiseConfigGroup noise = ConfigUtils.addOrGetModule(config, NoiseConfigGroup.class);
+		noise.setReceiverPointGap(receiverPointGap);
+		noise.setReceiverPointsGridMinX(tile.getMinX());
+		noise.setReceiverPointsGridMaxX(tile.getMaxX());
+		noise.setReceiverPointsGridMinY(tile.getMinY());
+		noise.setReceiverPointsGridMaxY(tile.getMaxY());
+		noise.setComputeCausingAgents(false);
+		noise.setComputeNoiseDamages(false);
+		noise.setComputePopulationUnits(false);
+		noise.setInternalizeNoiseDamages(false);
+		noise.setThrowNoiseEventsAffected(false);
+		noise.setThrowNoiseEventsCaused(false);
+
+		MutableScenario scenario = ScenarioUtils.createMutableScenario(config);
+		scenario.setNetwork(network);
+
+		new NoiseOfflineCalculation(scenario, tileDir.toString()).run();
+	}
+
+	/**
+	 * Merge the outputs of all tiles. Files with a receiver point id as first column are concatenated, also if they are compressed.
+	 * Receiver point ids are prefixed with the tile index in all of them, as the ids of the tiles overlap.
+	 * All other files (e.g. emissions per link) have to be the same for every tile and are copied from the first tile. Config files differ in the grid bounds only.
+	 * Any other file, which differs between tiles, cannot be merged and aborts the analysis.
+	 */
+	static void merge(List<Path> tileDirs, Path target) throws IOException {
+		Map<Path, Map<Integer, Path>> files = new TreeMap<>();
+		for (int i = 0; i < tileDirs.size(); i++) {
+			Path base = tileDirs.get(i).resolve(NOISE_DIR);
+			if (!Files.exists(base)) {
+				continue;
+			}
+			int tile = i;
+			try (Stream<Path> stream = Files.walk(base)) {
+				stream.filter(Files::isRegularFile).forEach(f -> files.computeIfAbsent(base.relativize(f), p -> new TreeMap<>()).put(tile, f));
+			}
+		}
+
+		int merged = 0;
+		for (Map.Entry<Path, Map<Integer, Path>> e : files.entrySet()) {
+			Path out = target.resolve(e.getKey());
+			Files.createDirectories(out.getParent());
+
+			Path first = e.getValue().values().iterator().next();
+			if (isReceiverPointFile(first)) {
+				concat(e.getValue(), out);
+				merged++;
+			} else if (isConfigFile(first) || isSameInAllTiles(e.getValue().values())) {
+				Files.copy(first, out, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				throw new IllegalStateException("Output " + e.getKey() + " differs between tiles and has no receiver point id column. It cannot be merged.");
+			}
+		}
+		log.info("Merged {} receiver point files and copied {} other files of {} tiles.", merged, files.size() - merged, tileDirs.size());
+	}
+
+	/**
+	 * Concatenate the rows of all tiles. The header is taken from the first tile, receiver point ids are prefixed with the tile index.
+	 */
+	private static void concat(Map<Integer, Path> tiles, Path out) throws IOException {
+		String header = null;
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(out.toString())) {
+			for (Map.Entry<Integer, Path> tile : tiles.entrySet()) {
+				try (BufferedReader reader = IOUtils.getBufferedReader(tile.getValue().toString())) {
+					String line = reader.readLine();
+					if (line == null) {
+						continue;
+					}
+					if (header == null) {
+						header = line;
+						writer.write(line);
+						writer.newLine();
+					} else if (!header.equals(line)) {
+						throw new IllegalStateException("Header of " + tile.getValue() + " differs from the other tiles: " + line);
+					}
+					while ((line = reader.readLine()) != null) {
+						writer.write(tile.getKey() + "_" + line);
+						writer.newLine();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether the first column of a csv file, which may be compressed, is a receiver point id.
+	 */
+	private static boolean isReceiverPointFile(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		if (!name.endsWith(".csv") && !name.endsWith(".csv.gz") && !name.endsWith(".tsv") && !name.endsWith(".tsv.gz")) {
+			return false;
+		}
+		try (BufferedReader reader = IOUtils.getBufferedReader(file.toString())) {
+			String header = reader.readLine();
+			return header != null && header.toLowerCase(Locale.ROOT).replaceAll("[^a-z;,\\t]", "").startsWith("receiverpoint");
+		}
+	}
+
+	private static boolean isConfigFile(Path file) {
+		String name = file.getFileName().toString();
+		return name.contains("config") && (name.endsWith(".xml") || name.endsWith(".xml.gz"));
+	}
+
+	/**
+	 * Compare the decompressed content of the files.
+	 */
+	private static boolean isSameInAllTiles(Collection<Path> files) throws IOException {
+		String hash = null;
+		for (Path file : files) {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			try (InputStream in = IOUtils.getInputStream(IOUtils.resolveFileOrResource(file.toString()))) {
+				byte[] buffer = new byte[1 << 16];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+			String h = HexFormat.of().formatHex(digest.digest());
+			if (hash != null && !hash.equals(h)) {
+				return false;
+			}
+			hash = h;
+		}
+		return true;
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> stream = Files.walk(dir)) {
+			for (Path p : stream.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.simwrapper.SimWrapperConfigGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the {@link TiledNoiseAnalysis} on the output of a successful run, after the output files have been written.
+ */
+public final class TiledNoiseAnalysisListener implements ShutdownListener {
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+	@Inject
+	private Config config;
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+		if (event.isUnexpected()) {
+			return;
+		}
+
+		List<String> args = new ArrayList<>(List.of("--run-directory", controlerIO.getOutputPath()));
+//		restrict the receiver points to the shape file of the dashboards, the network bounds are far too large
+		String shp = ConfigUtils.addOrGetModule(config, SimWrapperConfigGroup.class).defaultParams().getShp();
+		if (shp != null) {
+			args.addAll(List.of("--shp", shp));
+		}
+
+		new TiledNoiseAnalysis().execute(args.toArray(String[]::new));
+	}
+
+	@Override
+	public double priority() {
+//		run after the output files have been dumped and after the simwrapper dashboards
+		return -200;
+	}
+}
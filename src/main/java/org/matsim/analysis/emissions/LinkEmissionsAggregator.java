@@ -0,0 +1,133 @@
+package org.matsim.analysis.emissions;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.emissions.Pollutant;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums up warm and cold emissions per link and hour. Emissions are stored in one array per link, indexed by hour and pollutant.
+ * The arrays of all links are kept in an array indexed by link id index, so that adding emissions does not need a map lookup.
+ */
+final class LinkEmissionsAggregator implements WarmEmissionEventHandler, ColdEmissionEventHandler {
+
+	private static final Pollutant[] POLLUTANTS = Pollutant.values();
+
+	private double[][][] emissions = new double[0][][];
+	private int linkCount;
+	private final boolean[] occurring = new boolean[POLLUTANTS.length];
+
+	@Override
+	public void handleEvent(WarmEmissionEvent event) {
+		add(event.getLinkId(), event.getTime(), event.getWarmEmissions());
+	}
+
+	@Override
+	public void handleEvent(ColdEmissionEvent event) {
+		add(event.getLinkId(), event.getTime(), event.getColdEmissions());
+	}
+
+	@Override
+	public void reset(int iteration) {
+		Arrays.fill(emissions, null);
+		linkCount = 0;
+		Arrays.fill(occurring, false);
+	}
+
+	private void add(Id<Link> linkId, double time, Map<Pollutant, Double> values) {
+		for (Map.Entry<Pollutant, Double> e : values.entrySet()) {
+			add(linkId, time, e.getKey().ordinal(), e.getValue());
+		}
+	}
+
+	/**
+	 * Add emissions in g of the pollutant with the given ordinal.
+	 */
+	void add(Id<Link> linkId, double time, int pollutant, double value) {
+		int hour = (int) (time / 3600);
+		int link = linkId.index();
+		if (link >= emissions.length) {
+			emissions = Arrays.copyOf(emissions, Math.max(link + 1, emissions.length * 2));
+		}
+		double[][] perHour = emissions[link];
+		if (perHour == null || perHour.length <= hour) {
+			if (perHour == null) {
+				linkCount++;
+			}
+			perHour = perHour == null ? new double[hour + 1][] : Arrays.copyOf(perHour, hour + 1);
+			emissions[link] = perHour;
+		}
+		if (perHour[hour] == null) {
+			perHour[hour] = new double[POLLUTANTS.length];
+		}
+
+		perHour[hour][pollutant] += value;
+		occurring[pollutant] = true;
+	}
+
+	/**
+	 * Write emissions in g per link and hour, and per link for the whole day. Only pollutants which occurred are written.
+	 */
+	void write(Path perLinkAndHour, Path perLink) throws IOException {
+		List<Pollutant> pollutants = new ArrayList<>();
+		for (Pollutant pollutant : POLLUTANTS) {
+			if (occurring[pollutant.ordinal()]) {
+				pollutants.add(pollutant);
+			}
+		}
+
+		List<String> hourHeader = new ArrayList<>(List.of("linkId", "hour"));
+		List<String> dayHeader = new ArrayList<>(List.of("linkId"));
+		pollutants.forEach(p -> hourHeader.add(p.name()));
+		pollutants.forEach(p -> dayHeader.add(p.name()));
+
+		try (CSVPrinter hourly = new CSVPrinter(Files.newBufferedWriter(perLinkAndHour), CSVFormat.DEFAULT.builder().setHeader(hourHeader.toArray(String[]::new)).build());
+			 CSVPrinter daily = new CSVPrinter(Files.newBufferedWriter(perLink), CSVFormat.DEFAULT.builder().setHeader(dayHeader.toArray(String[]::new)).build())) {
+
+			for (int link = 0; link < emissions.length; link++) {
+				double[][] perHour = emissions[link];
+				if (perHour == null) {
+					continue;
+				}
+				Id<Link> linkId = Id.get(link, Link.class);
+				double[] day = new double[POLLUTANTS.length];
+				for (int hour = 0; hour < perHour.length; hour++) {
+					double[] values = perHour[hour];
+					if (values == null) {
+						continue;
+					}
+					hourly.print(linkId);
+					hourly.print(hour);
+					for (Pollutant p : pollutants) {
+						hourly.print(values[p.ordinal()]);
+						day[p.ordinal()] += values[p.ordinal()];
+					}
+					hourly.println();
+				}
+
+				daily.print(linkId);
+				for (Pollutant p : pollutants) {
+					daily.print(day[p.ordinal()]);
+				}
+				daily.println();
+			}
+		}
+	}
+
+	int getLinkCount() {
+		return linkCount;
+	}
+}
@@ -0,0 +1,152 @@
+package org.matsim.analysis.emissions;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.events.handler.EventHandler;
+import org.matsim.utils.HbefaTableCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Computes emissions online in selected iterations. In these iterations all events are forwarded to a separate events manager,
+ * on which the {@link EmissionModule} and the {@link LinkEmissionsAggregator} are registered.
+ * Thus, emission events are neither written into the events file nor passed to the handlers of the simulation.
+ * If a HBEFA cache is given, the {@link WarmEmissionHandler} is registered directly on the events manager instead.
+ * As these emissions are warm emissions only, they are written into files with different names, so that they are not mistaken for warm and cold emissions.
+ * The emission module, respectively the factor resolver, is created once and reused in all active iterations.
+ */
+final class OnlineEmissionsListener implements IterationStartsListener, IterationEndsListener {
+	private static final Logger log = LogManager.getLogger(OnlineEmissionsListener.class);
+
+	private final int interval;
+	private final Path hbefaCache;
+
+	@Inject
+	private Scenario scenario;
+	@Inject
+	private EventsManager eventsManager;
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
+	private LinkEmissionsAggregator aggregator;
+	private EventsManager emissionEvents;
+	private EventHandler forward;
+	private WarmEmissionFactorResolver resolver;
+	private boolean active;
+	private Instant start;
+
+	OnlineEmissionsListener(int interval, Path hbefaCache) {
+		this.interval = interval;
+		this.hbefaCache = hbefaCache;
+	}
+
+	private boolean isActive(int iteration) {
+		return iteration == scenario.getConfig().controller().getLastIteration() || (interval > 0 && iteration % interval == 0);
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		if (!isActive(event.getIteration())) {
+			return;
+		}
+
+		start = Instant.now();
+		if (forward == null) {
+			initialize();
+		}
+
+//		the emission module and the HBEFA tables are kept over iterations, only the handlers are reset
+		if (emissionEvents != null) {
+			emissionEvents.resetHandlers(event.getIteration());
+			emissionEvents.initProcessing();
+		} else {
+			forward.reset(event.getIteration());
+		}
+		aggregator.reset(event.getIteration());
+		eventsManager.addHandler(forward);
+		active = true;
+	}
+
+	/**
+	 * Create the handlers and read the HBEFA tables. This is done once, in the first active iteration.
+	 */
+	private void initialize() {
+		aggregator = new LinkEmissionsAggregator();
+
+		if (hbefaCache != null) {
+			try {
+				resolver = new WarmEmissionFactorResolver(HbefaTableCache.read(hbefaCache, HbefaTableCache.Table.WARM_DETAILED),
+					HbefaTableCache.read(hbefaCache, HbefaTableCache.Table.WARM_AVERAGE));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			forward = new WarmEmissionHandler(scenario, resolver, aggregator);
+			return;
+		}
+
+		emissionEvents = EventsUtils.createEventsManager();
+		emissionEvents.addHandler(aggregator);
+//		the emission module registers its handlers on the given events manager. Link attributes and vehicle types are prepared in DresdenScenario.
+		new EmissionModule(scenario, emissionEvents);
+
+		forward = new BasicEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				emissionEvents.processEvent(e);
+			}
+		};
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		if (!active) {
+			return;
+		}
+
+		eventsManager.removeHandler(forward);
+		if (emissionEvents != null) {
+			emissionEvents.finishProcessing();
+		}
+
+		String perLinkAndHourName = resolver == null ? OnlineEmissionsModule.PER_LINK_AND_HOUR : OnlineEmissionsModule.WARM_PER_LINK_AND_HOUR;
+		String perLinkName = resolver == null ? OnlineEmissionsModule.PER_LINK : OnlineEmissionsModule.WARM_PER_LINK;
+		try {
+			Path perLinkAndHour = Path.of(controlerIO.getIterationFilename(event.getIteration(), perLinkAndHourName));
+			Path perLink = Path.of(controlerIO.getIterationFilename(event.getIteration(), perLinkName));
+			aggregator.write(perLinkAndHour, perLink);
+
+			if (event.isLastIteration()) {
+				Files.copy(perLinkAndHour, Path.of(controlerIO.getOutputFilename(perLinkAndHourName)), StandardCopyOption.REPLACE_EXISTING);
+				Files.copy(perLink, Path.of(controlerIO.getOutputFilename(perLinkName)), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		log.info("Computed emissions on {} links in iteration {}, {} s spent in emission handling and writing.", aggregator.getLinkCount(), event.getIteration(),
+			Duration.between(start, Instant.now()).toSeconds());
+		if (resolver != null) {
+			log.info("Warm emission factors: {}", resolver.getStats());
+		}
+
+		active = false;
+	}
+}
@@ -0,0 +1,38 @@
+package org.matsim.analysis.emissions;
+
+import org.matsim.core.controler.AbstractModule;
+
+import java.nio.file.Path;
+
+/**
+ * Computes emissions during the simulation instead of re-reading the events afterward.
+ * Emissions are computed in the last iteration and, if an interval is given, in every n-th iteration.
+ * Results are written as aggregated tables per link and hour and per link into the iteration and output directories.
+ * If a HBEFA cache is given, only warm emissions are computed, with the memoised factors of {@link WarmEmissionFactorResolver} instead of the emissions contrib.
+ */
+public final class OnlineEmissionsModule extends AbstractModule {
+
+	public static final String PER_LINK_AND_HOUR = "emissions_per_link_per_hour.csv";
+	public static final String PER_LINK = "emissions_per_link.csv";
+	public static final String WARM_PER_LINK_AND_HOUR = "emissions_warm_only_per_link_per_hour.csv";
+	public static final String WARM_PER_LINK = "emissions_warm_only_per_link.csv";
+
+	private final int interval;
+	private final Path hbefaCache;
+
+	/**
+	 * Create the module.
+	 *
+	 * @param interval   compute emissions in every n-th iteration, 0 for the last iteration only
+	 * @param hbefaCache directory of the HBEFA cache for the Dresden warm emission calculation, null to use the emissions contrib
+	 */
+	public OnlineEmissionsModule(int interval, Path hbefaCache) {
+		this.interval = interval;
+		this.hbefaCache = hbefaCache;
+	}
+
+	@Override
+	public void install() {
+		addControlerListenerBinding().toInstance(new OnlineEmissionsListener(interval, hbefaCache));
+	}
+}
@@ -0,0 +1,295 @@
+package org.matsim.analysis.emissions;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.contrib.emissions.HbefaVehicleCategory;
+import org.matsim.contrib.emissions.Pollutant;
+import org.matsim.utils.HbefaTableCache;
+import org.matsim.vehicles.EngineInformation;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolves warm emission factors per HBEFA road type and vehicle type from the cached HBEFA tables (see {@link HbefaTableCache}).
+ * The lookup follows the behaviour tryDetailedThenTechnologyAverageThenAverageTable of the emissions contrib:
+ * the detailed row of the vehicle, then the row with the technology of the vehicle and average size class and emission concept of the detailed table, then the average table.
+ * Like in the contrib, technology averages are not computed, but taken from the average rows of the detailed table.
+ * Every combination of road type and vehicle type is resolved once, on first use, and kept in an array indexed by road type and vehicle type index.
+ * Lookups of resolved combinations do not allocate.
+ */
+final class WarmEmissionFactorResolver {
+	private static final Logger log = LogManager.getLogger(WarmEmissionFactorResolver.class);
+
+	private static final String[] SITUATIONS = {"Freeflow", "St+Go"};
+	private static final int FREEFLOW = 0;
+	private static final int STOP_AND_GO = 1;
+	private static final String TECHNOLOGY_AVERAGE = "average";
+
+	/**
+	 * Factors in g/km per pollutant ordinal for free flow and stop and go, and the speeds in km/h of both traffic situations.
+	 */
+	record Factors(double[] freeflow, double[] stopAndGo, int[] pollutants, double freeflowSpeed, double stopAndGoSpeed) {
+	}
+
+	private static final Factors UNRESOLVED = new Factors(new double[0], new double[0], new int[0], 0, 0);
+
+	private final Table detailed;
+	private final Table average;
+
+	private final List<String> roadTypes = new ArrayList<>();
+	private final Map<String, Integer> roadTypeIndex = new HashMap<>();
+	private final List<String[]> vehicleTypes = new ArrayList<>();
+	private final Map<String, Integer> vehicleTypeIndex = new HashMap<>();
+
+	private Factors[][] factors = new Factors[0][];
+	private long hits;
+	private long resolved;
+	private long unresolved;
+
+	WarmEmissionFactorResolver(HbefaTableCache.KeyedTable detailed, HbefaTableCache.KeyedTable average) {
+		this.detailed = new Table(detailed, "EFA", "V");
+		this.average = new Table(average, "EFA_weighted", "V_weighted");
+	}
+
+	/**
+	 * Index of a HBEFA road type. Indices are assigned at setup, so that the per-event lookup works on indices only.
+	 */
+	int getRoadTypeIndex(String roadType) {
+		return roadTypeIndex.computeIfAbsent(roadType, r -> {
+			roadTypes.add(r);
+			factors = Arrays.copyOf(factors, roadTypes.size());
+			factors[roadTypes.size() - 1] = new Factors[vehicleTypes.size()];
+			return roadTypes.size() - 1;
+		});
+	}
+
+	/**
+	 * Index of a vehicle type, -1 for types which are not HBEFA vehicles.
+	 */
+	int getVehicleTypeIndex(VehicleType type) {
+		EngineInformation engine = type.getEngineInformation();
+		String category = mapCategory(VehicleUtils.getHbefaVehicleCategory(engine));
+		if (category == null) {
+			return -1;
+		}
+
+		String[] attributes = {category, VehicleUtils.getHbefaTechnology(engine), VehicleUtils.getHbefaSizeClass(engine), VehicleUtils.getHbefaEmissionsConcept(engine)};
+		return vehicleTypeIndex.computeIfAbsent(String.join(";", Arrays.stream(attributes).map(String::valueOf).toList()), k -> {
+			vehicleTypes.add(attributes);
+			for (int road = 0; road < factors.length; road++) {
+				factors[road] = Arrays.copyOf(factors[road], vehicleTypes.size());
+			}
+			return vehicleTypes.size() - 1;
+		});
+	}
+
+	/**
+	 * Factors of a road type and vehicle type. Returns null, if no factors are found in any table.
+	 */
+	Factors get(int roadType, int vehicleType) {
+		Factors f = factors[roadType][vehicleType];
+		if (f == null) {
+			f = resolve(roadTypes.get(roadType), vehicleTypes.get(vehicleType));
+			factors[roadType][vehicleType] = f;
+		} else {
+			hits++;
+		}
+		return f == UNRESOLVED ? null : f;
+	}
+
+	private Factors resolve(String roadType, String[] vehicle) {
+		double[][] efa = new double[SITUATIONS.length][];
+		double[] speed = new double[SITUATIONS.length];
+
+		for (int s = 0; s < SITUATIONS.length; s++) {
+			String situation = roadType + "/" + SITUATIONS[s];
+//			detailed, then technology average, then average table
+			Sum sum = detailed.sum(vehicle[0], situation, vehicle[1], vehicle[2], vehicle[3]);
+			if (sum == null) {
+				sum = detailed.sum(vehicle[0], situation, vehicle[1], TECHNOLOGY_AVERAGE, TECHNOLOGY_AVERAGE);
+			}
+			if (sum == null) {
+				sum = average.sum(vehicle[0], situation, null, null, null);
+			}
+			if (sum == null) {
+				unresolved++;
+				log.warn("No warm emission factors found for road type {} and vehicle {}.", roadType, String.join(";", Arrays.stream(vehicle).map(String::valueOf).toList()));
+				return UNRESOLVED;
+			}
+			efa[s] = sum.efa();
+			speed[s] = sum.speed();
+		}
+
+		resolved++;
+		int[] pollutants = new int[Pollutant.values().length];
+		int n = 0;
+		for (int p = 0; p < pollutants.length; p++) {
+			if (efa[FREEFLOW][p] != 0 || efa[STOP_AND_GO][p] != 0) {
+				pollutants[n++] = p;
+			}
+		}
+		return new Factors(efa[FREEFLOW], efa[STOP_AND_GO], Arrays.copyOf(pollutants, n), speed[FREEFLOW], speed[STOP_AND_GO]);
+	}
+
+	/**
+	 * Cache statistics.
+	 */
+	String getStats() {
+		long lookups = hits + resolved + unresolved;
+		return String.format(Locale.ROOT, "%d road types, %d vehicle types, %d lookups, %d resolved, %d unresolved, hit rate %.4f",
+			roadTypes.size(), vehicleTypes.size(), lookups, resolved, unresolved, lookups == 0 ? 0 : (double) hits / lookups);
+	}
+
+	private static String mapCategory(String category) {
+		if (category == null) {
+			return null;
+		}
+		return switch (HbefaVehicleCategory.valueOf(category)) {
+			case PASSENGER_CAR -> "pass. car";
+			case LIGHT_COMMERCIAL_VEHICLE -> "LCV";
+			case HEAVY_GOODS_VEHICLE -> "HGV";
+			case URBAN_BUS -> "urban bus";
+			case COACH -> "coach";
+			case MOTORCYCLE -> "motorcycle";
+			default -> null;
+		};
+	}
+
+	private record Sum(double[] efa, double speed) {
+	}
+
+	/**
+	 * Cached table with rows grouped by vehicle category and traffic situation.
+	 */
+	private static final class Table {
+		private final HbefaTableCache.KeyedTable table;
+		private final int category;
+		private final int situation;
+		private final int component;
+		private final int technology;
+		private final int sizeClass;
+		private final int concept;
+		private final int efa;
+		private final int speed;
+		private final int[] pollutantOfComponent;
+		private final Map<Long, int[]> rows = new HashMap<>();
+
+		Table(HbefaTableCache.KeyedTable table, String efaColumn, String speedColumn) {
+			this.table = table;
+			this.category = require(table.keyColumn("VehCat"), "VehCat");
+			this.situation = require(table.keyColumn("TrafficSit"), "TrafficSit");
+			this.component = require(table.keyColumn("Component"), "Component");
+			this.technology = table.keyColumn("Technology");
+			this.sizeClass = table.keyColumn("SizeClasse");
+			this.concept = table.keyColumn("EmConcept");
+			this.efa = require(table.valueColumn(efaColumn), efaColumn);
+			this.speed = require(table.valueColumn(speedColumn), speedColumn);
+
+//			components are matched to pollutants by their name without special characters, e.g. CO2(total) -> CO2_TOTAL, PM2.5 -> PM2_5
+			Map<String, Pollutant> pollutants = new HashMap<>();
+			for (Pollutant p : Pollutant.values()) {
+				pollutants.put(normalize(p.name()), p);
+			}
+			String[] components = table.dictionaries()[component];
+			pollutantOfComponent = new int[components.length];
+			for (int i = 0; i < components.length; i++) {
+				Pollutant p = pollutants.get(normalize(components[i]));
+				pollutantOfComponent[i] = p == null ? -1 : p.ordinal();
+			}
+
+//			only rows without gradient are used, if the table contains gradients
+			int gradient = table.keyColumn("Gradient");
+			int flat = gradient < 0 ? -1 : table.code(gradient, "0%");
+
+			Map<Long, List<Integer>> grouped = new HashMap<>();
+			for (int row = 0; row < table.rows(); row++) {
+				if (flat >= 0 && table.key(row, gradient) != flat) {
+					continue;
+				}
+				grouped.computeIfAbsent(key(table.key(row, category), table.key(row, situation)), k -> new ArrayList<>()).add(row);
+			}
+			grouped.forEach((k, v) -> rows.put(k, v.stream().mapToInt(Integer::intValue).toArray()));
+		}
+
+		private static int require(int column, String name) {
+			if (column < 0) {
+				throw new IllegalArgumentException("Column " + name + " is missing in cached HBEFA table.");
+			}
+			return column;
+		}
+
+		private static String normalize(String s) {
+			return s.replaceAll("[^A-Za-z0-9]", "").toLowerCase(Locale.ROOT);
+		}
+
+		private static long key(int category, int situation) {
+			return ((long) category << 32) | situation;
+		}
+
+		/**
+		 * Mean of factors and speed of all matching rows. Null attributes are not filtered. Returns null if no row matches.
+		 */
+		Sum sum(String vehCat, String trafficSit, String tech, String size, String emConcept) {
+			int cat = table.code(category, vehCat);
+			int sit = table.code(situation, trafficSit);
+			int[] candidates = cat < 0 || sit < 0 ? null : rows.get(key(cat, sit));
+			if (candidates == null) {
+				return null;
+			}
+
+			int techCode = code(technology, tech);
+			int sizeCode = code(sizeClass, size);
+			int conceptCode = code(concept, emConcept);
+			if (techCode == -2 || sizeCode == -2 || conceptCode == -2) {
+				return null;
+			}
+
+			double[] efaSum = new double[Pollutant.values().length];
+			double[] weightSum = new double[Pollutant.values().length];
+			double speedSum = 0;
+			double speedWeight = 0;
+			for (int row : candidates) {
+				if ((techCode >= 0 && table.key(row, technology) != techCode)
+					|| (sizeCode >= 0 && table.key(row, sizeClass) != sizeCode)
+					|| (conceptCode >= 0 && table.key(row, concept) != conceptCode)) {
+					continue;
+				}
+				int pollutant = pollutantOfComponent[table.key(row, component)];
+				double value = table.value(row, efa);
+				if (pollutant < 0 || Double.isNaN(value)) {
+					continue;
+				}
+				efaSum[pollutant] += value;
+				weightSum[pollutant]++;
+				speedSum += table.value(row, speed);
+				speedWeight++;
+			}
+
+			if (speedWeight == 0) {
+				return null;
+			}
+			for (int p = 0; p < efaSum.length; p++) {
+				efaSum[p] = weightSum[p] == 0 ? 0 : efaSum[p] / weightSum[p];
+			}
+			return new Sum(efaSum, speedSum / speedWeight);
+		}
+
+		/**
+		 * Code of an attribute. -1 if the attribute is not filtered, -2 if the value does not occur in the table.
+		 */
+		private int code(int column, String value) {
+			if (column < 0 || value == null) {
+				return -1;
+			}
+			int code = table.code(column, value);
+			return code < 0 ? -2 : code;
+		}
+	}
+}
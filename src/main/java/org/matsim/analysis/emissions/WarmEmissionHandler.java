@@ -0,0 +1,142 @@
+package org.matsim.analysis.emissions;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.emissions.utils.EmissionUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * Computes warm emissions of every link passage with the factors of the {@link WarmEmissionFactorResolver}.
+ * Like the stop and go fraction method of the emissions contrib, the link is split into a free flow and a stop and go part, so that the average speed is met.
+ * Road types, link lengths, vehicle types and link enter times are kept in arrays indexed by id index, so that handling an event does not allocate.
+ */
+final class WarmEmissionHandler implements LinkEnterEventHandler, LinkLeaveEventHandler, VehicleLeavesTrafficEventHandler {
+
+	private static final int UNKNOWN = -2;
+
+	private final Scenario scenario;
+	private final WarmEmissionFactorResolver resolver;
+	private final LinkEmissionsAggregator aggregator;
+
+	private int[] linkRoadType = new int[0];
+	private double[] linkLength = new double[0];
+	private int[] vehicleType = new int[0];
+	private double[] enterTime = new double[0];
+
+	WarmEmissionHandler(Scenario scenario, WarmEmissionFactorResolver resolver, LinkEmissionsAggregator aggregator) {
+		this.scenario = scenario;
+		this.resolver = resolver;
+		this.aggregator = aggregator;
+
+		for (Link link : scenario.getNetwork().getLinks().values()) {
+			int index = link.getId().index();
+			if (index >= linkRoadType.length) {
+				linkRoadType = grow(linkRoadType, index, -1);
+				linkLength = Arrays.copyOf(linkLength, linkRoadType.length);
+			}
+			String roadType = EmissionUtils.getHbefaRoadType(link);
+			linkRoadType[index] = roadType == null ? -1 : resolver.getRoadTypeIndex(roadType);
+			linkLength[index] = link.getLength();
+		}
+
+		for (Vehicle vehicle : scenario.getVehicles().getVehicles().values()) {
+			getVehicleType(vehicle.getId());
+		}
+	}
+
+	@Override
+	public void handleEvent(LinkEnterEvent event) {
+		int index = event.getVehicleId().index();
+		if (index >= enterTime.length) {
+			int length = enterTime.length;
+			enterTime = Arrays.copyOf(enterTime, Math.max(index + 1, length * 2));
+			Arrays.fill(enterTime, length, enterTime.length, Double.NaN);
+		}
+		enterTime[index] = event.getTime();
+	}
+
+	@Override
+	public void handleEvent(VehicleLeavesTrafficEvent event) {
+		int index = event.getVehicleId().index();
+		if (index < enterTime.length) {
+			enterTime[index] = Double.NaN;
+		}
+	}
+
+	@Override
+	public void handleEvent(LinkLeaveEvent event) {
+		int vehicle = event.getVehicleId().index();
+		if (vehicle >= enterTime.length || Double.isNaN(enterTime[vehicle])) {
+			return;
+		}
+		double travelTime = event.getTime() - enterTime[vehicle];
+		enterTime[vehicle] = Double.NaN;
+
+		int link = event.getLinkId().index();
+		if (link >= linkRoadType.length || linkRoadType[link] < 0) {
+			return;
+		}
+		int type = getVehicleType(event.getVehicleId());
+		if (type < 0) {
+			return;
+		}
+
+		WarmEmissionFactorResolver.Factors factors = resolver.get(linkRoadType[link], type);
+		if (factors == null) {
+			return;
+		}
+
+//		km and h, as the HBEFA factors are given in g/km and speeds in km/h
+		double km = linkLength[link] / 1000;
+		double hours = travelTime / 3600;
+		double stopAndGoKm;
+		if (hours <= 0 || km / hours >= factors.freeflowSpeed()) {
+			stopAndGoKm = 0;
+		} else if (km / hours <= factors.stopAndGoSpeed()) {
+			stopAndGoKm = km;
+		} else {
+			stopAndGoKm = (hours - km / factors.freeflowSpeed()) / (1 / factors.stopAndGoSpeed() - 1 / factors.freeflowSpeed());
+		}
+		double freeflowKm = km - stopAndGoKm;
+
+		for (int p : factors.pollutants()) {
+			aggregator.add(event.getLinkId(), event.getTime(), p, freeflowKm * factors.freeflow()[p] + stopAndGoKm * factors.stopAndGo()[p]);
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+		Arrays.fill(enterTime, Double.NaN);
+	}
+
+	/**
+	 * Vehicle type index of a vehicle. Vehicles are looked up once, -1 for vehicles without HBEFA type.
+	 */
+	private int getVehicleType(Id<Vehicle> id) {
+		int index = id.index();
+		if (index >= vehicleType.length) {
+			vehicleType = grow(vehicleType, index, UNKNOWN);
+		}
+		if (vehicleType[index] == UNKNOWN) {
+			Vehicle vehicle = scenario.getVehicles().getVehicles().get(id);
+			vehicleType[index] = vehicle == null ? -1 : resolver.getVehicleTypeIndex(vehicle.getType());
+		}
+		return vehicleType[index];
+	}
+
+	private static int[] grow(int[] array, int index, int fill) {
+		int size = Math.max(index + 1, array.length * 2);
+		int[] grown = Arrays.copyOf(array, size);
+		Arrays.fill(grown, array.length, size, fill);
+		return grown;
+	}
+}
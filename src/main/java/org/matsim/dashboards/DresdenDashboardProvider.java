@@ -7,12 +7,29 @@ import org.matsim.simwrapper.SimWrapper;
 import org.matsim.simwrapper.dashboard.EmissionsDashboard;
 import org.matsim.simwrapper.dashboard.TripDashboard;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Default Dashboards for the Dresden scenario.
  */
 public class DresdenDashboardProvider implements DashboardProvider {
+
+	private final Emissions emissions;
+
+	public DresdenDashboardProvider() {
+		this(Emissions.EVENTS);
+	}
+
+	/**
+	 * Create the provider.
+	 *
+	 * @param emissions how emissions are computed, which determines the emissions dashboard.
+	 */
+	public DresdenDashboardProvider(Emissions emissions) {
+		this.emissions = emissions;
+	}
+
 	@Override
 	public List<Dashboard> getDashboards(Config config, SimWrapper simWrapper) {
 //		create TripDashboard with reference files for calibration
@@ -26,10 +43,33 @@ public class DresdenDashboardProvider implements DashboardProvider {
 			.withDistanceDistribution("mode_share_distance_distribution.csv")
 			.setAnalysisArgs("--person-filter", "subpopulation=person")).context("calibration").title("Trips (calibration)");
 
-		return List.of(trips,
-			new EmissionsDashboard(config.global().getCoordinateSystem())
-//			the NoiseAnalysis is not run here because it needs more RAM than the entire simulation,
-//			which leads to VM crashes and prevents other analysis to run. We have to run it separately (e.g. with DresdenSimWrapperRunner)
-		);
+		List<Dashboard> dashboards = new ArrayList<>(List.of(trips));
+		switch (emissions) {
+			case EVENTS -> dashboards.add(new EmissionsDashboard(config.global().getCoordinateSystem()));
+			case ONLINE -> dashboards.add(new OnlineEmissionsDashboard(false));
+			case ONLINE_WARM_ONLY -> dashboards.add(new OnlineEmissionsDashboard(true));
+		}
+//		the NoiseAnalysis is not run here because it needs more RAM than the entire simulation,
+//		which leads to VM crashes and prevents other analysis to run. We have to run it separately (e.g. with DresdenSimWrapperRunner)
+//		or use the tiled noise analysis with bounded memory after the run (--noise ENABLED)
+		return dashboards;
+	}
+
+	/**
+	 * How emissions are computed, see {@link org.matsim.analysis.emissions.OnlineEmissionsModule} for online emissions.
+	 */
+	public enum Emissions {
+		/**
+		 * The emissions dashboard computes emissions from the events after the run.
+		 */
+		EVENTS,
+		/**
+		 * Emissions are computed during the simulation.
+		 */
+		ONLINE,
+		/**
+		 * Only warm emissions are computed during the simulation.
+		 */
+		ONLINE_WARM_ONLY
 	}
 }
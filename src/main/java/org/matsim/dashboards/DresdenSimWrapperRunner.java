@@ -22,28 +22,45 @@ package org.matsim.dashboards;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.TiledNoiseAnalysis;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.application.ApplicationUtils;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
+import org.matsim.contrib.emissions.HbefaVehicleCategory;
+import org.matsim.contrib.emissions.utils.EmissionUtils;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.simwrapper.Dashboard;
+import org.matsim.utils.HbefaTableCache;
 import org.matsim.simwrapper.SimWrapper;
 import org.matsim.simwrapper.SimWrapperConfigGroup;
 import org.matsim.simwrapper.dashboard.EmissionsDashboard;
 import org.matsim.simwrapper.dashboard.NoiseDashboard;
 import org.matsim.simwrapper.dashboard.TripDashboard;
+import org.matsim.vehicles.MatsimVehicleReader;
 import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.VehicleUtils;
 import picocli.CommandLine;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import static org.matsim.prepare.PrepareNetwork.prepareEmissionsAttributes;
 import static org.matsim.utils.DresdenUtils.prepareVehicleTypesForEmissionAnalysis;
@@ -62,10 +79,20 @@ public final class DresdenSimWrapperRunner implements MATSimAppCommand {
 	private final ShpOptions shp = new ShpOptions();
 	@CommandLine.Option(names = "--noise", defaultValue = "false", description = "create noise dashboard")
 	private boolean noise;
+	@CommandLine.Option(names = "--noise-tiled", defaultValue = "false", description = "run the tiled noise analysis with bounded memory instead of the noise dashboard")
+	private boolean noiseTiled;
 	@CommandLine.Option(names = "--trips", defaultValue = "false", description = "create trips dashboard")
 	private boolean trips;
 	@CommandLine.Option(names = "--emissions", defaultValue = "false", description = "create emission dashboard")
 	private boolean emissions;
+	@CommandLine.Option(names = "--parallel", defaultValue = "1", description = "Number of run directories, which are processed concurrently.")
+	private int parallel;
+	@CommandLine.Option(names = "--memory-per-heavy-job", defaultValue = "16", description = "Heap in GB needed by one heavy (noise or emissions) job. " +
+		"Only as many heavy jobs run concurrently as fit into the max heap of this JVM.")
+	private double memoryPerHeavyJob;
+	@CommandLine.Option(names = "--hbefa-cache", defaultValue = "${env:MATSIM_HBEFA_CACHE}",
+		description = "Directory with the decrypted HBEFA tables, see prepare hbefa-cache. Defaults to env variable MATSIM_HBEFA_CACHE.")
+	private Path hbefaCache;
 
 	private static final String FILE_TYPE = "_before_emissions.xml";
 
@@ -81,84 +108,184 @@ public final class DresdenSimWrapperRunner implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		if (!noise && !trips && !emissions){
+		if (!noise && !noiseTiled && !trips && !emissions){
 			throw new IllegalArgumentException("you have not configured any dashboard to be created! Please use command line parameters!");
 		}
 
-		for (Path runDirectory : inputPaths) {
-			log.info("Running on {}", runDirectory);
+//		the tiled noise analysis bounds its own memory usage and is not a heavy job
+		boolean heavy = noise || emissions;
+		int heavyPermits = Math.max(1, (int) (Runtime.getRuntime().maxMemory() / (memoryPerHeavyJob * 1e9)));
+		Semaphore memoryBudget = new Semaphore(heavyPermits);
+		log.info("Processing {} run directories with {} thread(s). At most {} heavy job(s) run concurrently.",
+			inputPaths.size(), Math.max(1, parallel), heavy ? Math.min(heavyPermits, Math.max(1, parallel)) : 0);
 
-			String configPath = ApplicationUtils.matchInput("config.xml", runDirectory).toString();
-			Config config = ConfigUtils.loadConfig(configPath);
-			SimWrapper sw = SimWrapper.create(config);
-
-			SimWrapperConfigGroup simwrapperCfg = ConfigUtils.addOrGetModule(config, SimWrapperConfigGroup.class);
-			if (shp.isDefined()){
-				simwrapperCfg.get("").setShp(shp.getShapeFile());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallel));
+		Map<Path, Future<Duration>> jobs = new LinkedHashMap<>();
+		try {
+			for (Path runDirectory : inputPaths) {
+				jobs.put(runDirectory, executor.submit(() -> {
+					if (heavy) {
+						memoryBudget.acquire();
+					}
+					try {
+						Instant start = Instant.now();
+						processRunDirectory(runDirectory);
+						Duration duration = Duration.between(start, Instant.now());
+						log.info("Finished {} in {} s.", runDirectory, duration.toSeconds());
+						return duration;
+					} finally {
+						if (heavy) {
+							memoryBudget.release();
+						}
+					}
+				}));
 			}
-			//skip default dashboards
-			simwrapperCfg.setDefaultDashboards(SimWrapperConfigGroup.Mode.disabled);
 
-			//add dashboards according to command line parameters
-//			if more dashboards are to be added here, we need to check if noise==true before adding noise dashboard here
-			if (noise) {
-				sw.addDashboard(Dashboard.customize(new NoiseDashboard(config.global().getCoordinateSystem())).context("noise"));
-			}
+			return summarize(jobs) == 0 ? 0 : 1;
+		} finally {
+			executor.shutdown();
+		}
+	}
 
-			if (trips) {
-				sw.addDashboard(Dashboard.customize(new TripDashboard(
-					"mode_share_ref.csv",
-					"mode_share_per_dist_ref.csv",
-					"mode_users_ref.csv")
-					.withGroupedRefData("mode_share_per_group_dist_ref.csv", "age", "economic_status", "income", "employment")
-					.withDistanceDistribution("mode_share_distance_distribution.csv")
-					.setAnalysisArgs("--person-filter", "subpopulation=person")).context("calibration").title("Trips (calibration)"));
+	/**
+	 * Log duration or failure of every run directory. Returns the number of failed directories.
+	 */
+	private static int summarize(Map<Path, Future<Duration>> jobs) throws InterruptedException {
+		List<String> failures = new ArrayList<>();
+		for (Map.Entry<Path, Future<Duration>> job : jobs.entrySet()) {
+			try {
+				log.info("{}: OK ({} s)", job.getKey(), job.getValue().get().toSeconds());
+			} catch (ExecutionException e) {
+				log.error("{}: FAILED", job.getKey(), e.getCause());
+				failures.add(job.getKey() + ": " + e.getCause());
 			}
+		}
 
-			if (emissions) {
-				sw.addDashboard(Dashboard.customize(new EmissionsDashboard(config.global().getCoordinateSystem())).context("emissions"));
+		if (!failures.isEmpty()) {
+			log.error("{} of {} run directories failed:", failures.size(), jobs.size());
+			failures.forEach(log::error);
+		}
+		return failures.size();
+	}
 
-				setEmissionsConfigs(config);
+	private void processRunDirectory(Path runDirectory) throws IOException {
+		log.info("Running on {}", runDirectory);
 
-				String networkPath = ApplicationUtils.matchInput("output_network.xml.gz", runDirectory).toString();
-				String vehiclesPath = ApplicationUtils.matchInput("output_vehicles.xml.gz", runDirectory).toString();
-				String transitVehiclesPath = ApplicationUtils.matchInput("output_transitVehicles.xml.gz", runDirectory).toString();
-				String populationPath = ApplicationUtils.matchInput("output_plans.xml.gz", runDirectory).toString();
+		String configPath = ApplicationUtils.matchInput("config.xml", runDirectory).toString();
+		Config config = ConfigUtils.loadConfig(configPath);
+		SimWrapper sw = SimWrapper.create(config);
 
-				config.network().setInputFile(networkPath);
-				config.vehicles().setVehiclesFile(vehiclesPath);
-				config.transit().setVehiclesFile(transitVehiclesPath);
-				config.plans().setInputFile(populationPath);
+		SimWrapperConfigGroup simwrapperCfg = ConfigUtils.addOrGetModule(config, SimWrapperConfigGroup.class);
+		if (shp.isDefined()){
+			simwrapperCfg.get("").setShp(shp.getShapeFile());
+		}
+		//skip default dashboards
+		simwrapperCfg.setDefaultDashboards(SimWrapperConfigGroup.Mode.disabled);
 
-				Scenario scenario = ScenarioUtils.loadScenario(config);
+		//add dashboards according to command line parameters
+//		if more dashboards are to be added here, we need to check if noise==true before adding noise dashboard here
+		if (noise) {
+			sw.addDashboard(Dashboard.customize(new NoiseDashboard(config.global().getCoordinateSystem())).context("noise"));
+		}
 
-//				adapt network and veh types for emissions analysis like in LausitzScenario base run class
-				prepareEmissionsAttributes(scenario.getNetwork());
-				prepareVehicleTypesForEmissionAnalysis(scenario);
+		if (trips) {
+			sw.addDashboard(Dashboard.customize(new TripDashboard(
+				"mode_share_ref.csv",
+				"mode_share_per_dist_ref.csv",
+				"mode_users_ref.csv")
+				.withGroupedRefData("mode_share_per_group_dist_ref.csv", "age", "economic_status", "income", "employment")
+				.withDistanceDistribution("mode_share_distance_distribution.csv")
+				.setAnalysisArgs("--person-filter", "subpopulation=person")).context("calibration").title("Trips (calibration)"));
+		}
 
-//				write outputs with adapted files.
-//				original output files need to be overwritten as AirPollutionAnalysis searches for "config.xml".
-//				copy old files to separate files
-				Files.copy(Path.of(configPath), getUniqueTargetPath(Path.of(configPath.split(".xml")[0] + FILE_TYPE)));
-				Files.copy(Path.of(networkPath), getUniqueTargetPath(Path.of(networkPath.split(".xml")[0] + FILE_TYPE + ".gz")));
-				Files.copy(Path.of(vehiclesPath), getUniqueTargetPath(Path.of(vehiclesPath.split(".xml")[0] + FILE_TYPE + ".gz")));
-				Files.copy(Path.of(transitVehiclesPath), getUniqueTargetPath(Path.of(transitVehiclesPath.split(".xml")[0] + FILE_TYPE + ".gz")));
+		if (emissions) {
+			sw.addDashboard(Dashboard.customize(new EmissionsDashboard(config.global().getCoordinateSystem())).context("emissions"));
 
-				ConfigUtils.writeConfig(config, configPath);
-				NetworkUtils.writeNetwork(scenario.getNetwork(), networkPath);
-				new MatsimVehicleWriter(scenario.getVehicles()).writeFile(vehiclesPath);
-				new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(transitVehiclesPath);
-			}
+			prepareEmissionsInputs(config, configPath, runDirectory, hbefaCache);
+		}
 
-			try {
-				sw.generate(runDirectory, true);
-				sw.run(runDirectory);
-			} catch (IOException e) {
-				throw new InterruptedIOException();
+		if (noiseTiled) {
+//			run directories, which are processed concurrently, share the heap
+			double maxMemory = Runtime.getRuntime().maxMemory() * 0.75 / 1e9 / Math.max(1, parallel);
+			List<String> args = new ArrayList<>(List.of("--run-directory", runDirectory.toString(), "--max-memory", String.valueOf(maxMemory)));
+			if (shp.isDefined()) {
+				args.addAll(List.of("--shp", shp.getShapeFile()));
 			}
+			new TiledNoiseAnalysis().execute(args.toArray(String[]::new));
 		}
 
-		return 0;
+		sw.generate(runDirectory, true);
+		sw.run(runDirectory);
+	}
+
+	/**
+	 * Adapt network and veh types for emissions analysis like in the scenario run class.
+	 * Only network and vehicles are loaded. Output files are only rewritten, if they are not prepared already (e.g. because the run was done with emissions enabled).
+	 * Original output files need to be overwritten as AirPollutionAnalysis searches for the output files by name. The originals are kept as separate files.
+	 */
+	private static void prepareEmissionsInputs(Config config, String configPath, Path runDirectory, Path hbefaCache) throws IOException {
+		Instant start = Instant.now();
+
+		String networkPath = ApplicationUtils.matchInput("output_network.xml.gz", runDirectory).toString();
+		String vehiclesPath = ApplicationUtils.matchInput("output_vehicles.xml.gz", runDirectory).toString();
+		String transitVehiclesPath = ApplicationUtils.matchInput("output_transitVehicles.xml.gz", runDirectory).toString();
+
+		boolean configPrepared = config.getModules().containsKey(EmissionsConfigGroup.GROUP_NAME);
+		if (!configPrepared) {
+			setEmissionsConfigs(config);
+		}
+//		the local HBEFA tables are used by AirPollutionAnalysis only if they are in the config file
+		if (HbefaTableCache.applyIfPresent(config, hbefaCache)) {
+			configPrepared = false;
+		}
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		new MatsimNetworkReader(scenario.getNetwork()).readFile(networkPath);
+		new MatsimVehicleReader(scenario.getVehicles()).readFile(vehiclesPath);
+		new MatsimVehicleReader(scenario.getTransitVehicles()).readFile(transitVehiclesPath);
+
+		boolean networkPrepared = scenario.getNetwork().getLinks().values().stream().allMatch(link -> EmissionUtils.getHbefaRoadType(link) != null);
+		boolean vehiclesPrepared = scenario.getVehicles().getVehicleTypes().values().stream()
+			.noneMatch(type -> type.getEngineInformation().getAttributes().isEmpty());
+		boolean transitVehiclesPrepared = scenario.getTransitVehicles().getVehicleTypes().values().stream()
+			.allMatch(type -> HbefaVehicleCategory.NON_HBEFA_VEHICLE.toString().equals(VehicleUtils.getHbefaVehicleCategory(type.getEngineInformation())));
+
+		if (!networkPrepared) {
+			prepareEmissionsAttributes(scenario.getNetwork());
+		}
+		prepareVehicleTypesForEmissionAnalysis(scenario);
+
+		if (!configPrepared) {
+			config.network().setInputFile(networkPath);
+			config.vehicles().setVehiclesFile(vehiclesPath);
+			config.transit().setVehiclesFile(transitVehiclesPath);
+			config.plans().setInputFile(ApplicationUtils.matchInput("output_plans.xml.gz", runDirectory).toString());
+
+			backup(configPath, "");
+			ConfigUtils.writeConfig(config, configPath);
+		}
+		if (!networkPrepared) {
+			backup(networkPath, ".gz");
+			NetworkUtils.writeNetwork(scenario.getNetwork(), networkPath);
+		}
+		if (!vehiclesPrepared) {
+			backup(vehiclesPath, ".gz");
+			new MatsimVehicleWriter(scenario.getVehicles()).writeFile(vehiclesPath);
+		}
+		if (!transitVehiclesPrepared) {
+			backup(transitVehiclesPath, ".gz");
+			new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(transitVehiclesPath);
+		}
+
+		log.info("Prepared emission inputs of {} in {} s. Rewritten: config={}, network={}, vehicles={}, transitVehicles={}.", runDirectory,
+			Duration.between(start, Instant.now()).toSeconds(), !configPrepared, !networkPrepared, !vehiclesPrepared, !transitVehiclesPrepared);
+	}
+
+	/**
+	 * Copy the original file to a separate file before it is overwritten.
+	 */
+	private static void backup(String path, String suffix) throws IOException {
+		Files.copy(Path.of(path), getUniqueTargetPath(Path.of(path.split(".xml")[0] + FILE_TYPE + suffix)));
 	}
 
 	private static Path getUniqueTargetPath(Path targetPath) {
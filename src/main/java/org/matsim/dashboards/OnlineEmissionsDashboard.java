@@ -0,0 +1,45 @@
+package org.matsim.dashboards;
+
+import org.matsim.analysis.emissions.OnlineEmissionsModule;
+import org.matsim.simwrapper.Dashboard;
+import org.matsim.simwrapper.Header;
+import org.matsim.simwrapper.Layout;
+import org.matsim.simwrapper.viz.Table;
+
+/**
+ * Shows the emissions per link, which are computed online, see {@link OnlineEmissionsModule}.
+ * Unlike the EmissionsDashboard, no analysis is run after the simulation, the tables written by the simulation are read directly.
+ */
+public class OnlineEmissionsDashboard implements Dashboard {
+
+	private final boolean warmOnly;
+
+	/**
+	 * Create the dashboard.
+	 *
+	 * @param warmOnly whether only warm emissions are computed, which are written into separate files.
+	 */
+	public OnlineEmissionsDashboard(boolean warmOnly) {
+		this.warmOnly = warmOnly;
+	}
+
+	@Override
+	public void configure(Header header, Layout layout) {
+		header.title = "Emissions";
+		header.description = warmOnly ?
+			"Warm emissions computed during the simulation. Cold emissions are NOT included." :
+			"Warm and cold emissions computed during the simulation.";
+
+		layout.row("links").el(Table.class, (viz, data) -> {
+			viz.title = "Emissions per link";
+			viz.description = "in g for the whole day";
+			viz.dataset = data.output("(*.)?" + (warmOnly ? OnlineEmissionsModule.WARM_PER_LINK : OnlineEmissionsModule.PER_LINK));
+		});
+
+		layout.row("hours").el(Table.class, (viz, data) -> {
+			viz.title = "Emissions per link and hour";
+			viz.description = "in g";
+			viz.dataset = data.output("(*.)?" + (warmOnly ? OnlineEmissionsModule.WARM_PER_LINK_AND_HOUR : OnlineEmissionsModule.PER_LINK_AND_HOUR));
+		});
+	}
+}
@@ -0,0 +1,264 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.MATSimApplication;
+import org.matsim.core.controler.Controler;
+import org.matsim.run.scenarios.DresdenScenario;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@CommandLine.Command(
+	name = "cached",
+	description = "Run a prepare command only if its inputs, arguments or code changed since the last run. Usage: cached --output OUT -- COMMAND ARGS... " +
+		"Outputs are not hashed as inputs. Commands, which overwrite their input file, are run again only if the file has been changed since their last run."
+)
+public class CachedPrepareStep implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(CachedPrepareStep.class);
+
+	private static final String KEYS_FILE = "keys.properties";
+	private static final String HASHES_FILE = "hashes.properties";
+	private static final String MANIFEST_FILE = "manifest.tsv";
+	private static final List<String> SHP_SIDECARS = List.of(".dbf", ".shx", ".prj", ".cpg");
+
+	@CommandLine.Parameters(arity = "1..*", paramLabel = "COMMAND", description = "Prepare command to run, followed by its arguments. Use -- before the command.")
+	private List<String> command;
+	@CommandLine.Option(names = "--output", description = "Output file(s) of the command. The command is skipped if all of them exist and are up to date.", required = true)
+	private List<Path> outputs;
+	@CommandLine.Option(names = "--cache-dir", description = "Directory for the cache state and manifest", defaultValue = ".prepare-cache")
+	private Path cacheDir;
+
+	public static void main(String[] args) {
+		new CachedPrepareStep().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		Class<? extends MATSimAppCommand> commandClass = findCommand(command.getFirst());
+		String[] args = command.subList(1, command.size()).toArray(String[]::new);
+
+		Files.createDirectories(cacheDir);
+		Properties keys = load(cacheDir.resolve(KEYS_FILE));
+		Properties hashes = load(cacheDir.resolve(HASHES_FILE));
+
+		String key = computeKey(commandClass, args, outputs, hashes);
+		store(hashes, cacheDir.resolve(HASHES_FILE));
+
+		boolean hit = outputs.stream().allMatch(output -> key.equals(keys.getProperty(output.toString())) && isUnchanged(output, keys));
+		writeManifest(command.getFirst(), key, hit);
+
+		if (hit) {
+			log.info("Cache hit for {} (key {}). Outputs {} are up to date, skipping.", command.getFirst(), key, outputs);
+			return 0;
+		}
+
+		log.info("Cache miss for {} (key {}). Running command.", command.getFirst(), key);
+		int code = new CommandLine(commandClass.getDeclaredConstructor().newInstance()).execute(args);
+		if (code != 0) {
+			return code;
+		}
+
+		for (Path output : outputs) {
+			if (!Files.exists(output)) {
+				throw new IllegalStateException("Command " + command.getFirst() + " did not create output " + output);
+			}
+			keys.setProperty(output.toString(), key);
+			keys.setProperty(output + ".stamp", stamp(output));
+		}
+		store(keys, cacheDir.resolve(KEYS_FILE));
+
+		return 0;
+	}
+
+	/**
+	 * Find a prepare command of the Dresden scenario by its name.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Class<? extends MATSimAppCommand> findCommand(String name) {
+		MATSimApplication.Prepare prepare = DresdenScenario.class.getAnnotation(MATSimApplication.Prepare.class);
+		for (Class<?> clazz : prepare.value()) {
+			CommandLine.Command annotation = clazz.getAnnotation(CommandLine.Command.class);
+			if (annotation != null && annotation.name().equals(name)) {
+				return (Class<? extends MATSimAppCommand>) clazz;
+			}
+		}
+		throw new IllegalArgumentException("Unknown prepare command: " + name);
+	}
+
+	/**
+	 * The key consists of the command name, the hash of the code, the arguments and the content of all arguments, which are existing files.
+	 * Outputs of the command are not hashed, as they exist after the first run.
+	 */
+	static String computeKey(Class<?> commandClass, String[] args, List<Path> outputs, Properties hashes) throws IOException {
+		MessageDigest digest = sha256();
+		update(digest, commandClass.getName());
+
+//		code of the project including nested classes and helpers, and of MATSim
+		update(digest, codeHash(commandClass, hashes));
+		update(digest, codeHash(Controler.class, hashes));
+
+		Set<Path> excluded = outputs.stream().map(p -> p.toAbsolutePath().normalize()).collect(Collectors.toSet());
+		for (String arg : args) {
+			update(digest, arg);
+			for (Path file : inputFiles(arg)) {
+				if (!excluded.contains(file.toAbsolutePath().normalize())) {
+					update(digest, fileHash(file, hashes));
+				}
+			}
+		}
+
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Add a value with its length, so that the concatenation of values is unambiguous.
+	 */
+	private static void update(MessageDigest digest, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+		digest.update(bytes);
+	}
+
+	/**
+	 * Hash of the jar or class directory, from which a class has been loaded.
+	 */
+	private static String codeHash(Class<?> clazz, Properties hashes) throws IOException {
+		CodeSource source = clazz.getProtectionDomain().getCodeSource();
+		if (source == null) {
+			return clazz.getName();
+		}
+
+		Path location;
+		try {
+			location = Path.of(source.getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (Files.isRegularFile(location)) {
+			return fileHash(location, hashes);
+		}
+
+		MessageDigest digest = sha256();
+		try (Stream<Path> files = Files.walk(location)) {
+			for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+				update(digest, location.relativize(file).toString());
+				update(digest, fileHash(file, hashes));
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Files referenced by an argument. Steps of the pipeline are single arguments with several words, so every word is checked.
+	 * Shape files are considered together with their sidecar files.
+	 */
+	private static List<Path> inputFiles(String arg) {
+		List<Path> files = new ArrayList<>();
+		for (String word : arg.trim().split("\\s+")) {
+			Path path;
+			try {
+				path = Path.of(word);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+
+			if (Files.isRegularFile(path)) {
+				files.add(path);
+				if (word.endsWith(".shp")) {
+					String base = word.substring(0, word.length() - ".shp".length());
+					SHP_SIDECARS.stream().map(ext -> Path.of(base + ext)).filter(Files::isRegularFile).forEach(files::add);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Content hash of a file. Hashes are memorized by size and modification time, so unchanged files are not read again.
+	 */
+	private static String fileHash(Path file, Properties hashes) throws IOException {
+		String stamp = stamp(file);
+		String memo = hashes.getProperty(file.toAbsolutePath().toString());
+		if (memo != null && memo.startsWith(stamp + "|")) {
+			return memo.substring(stamp.length() + 1);
+		}
+
+		MessageDigest digest = sha256();
+		try (InputStream in = Files.newInputStream(file)) {
+			byte[] buffer = new byte[1 << 20];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		String hash = HexFormat.of().formatHex(digest.digest());
+		hashes.setProperty(file.toAbsolutePath().toString(), stamp + "|" + hash);
+		return hash;
+	}
+
+	private static boolean isUnchanged(Path output, Properties keys) {
+		try {
+			return Files.exists(output) && stamp(output).equals(keys.getProperty(output + ".stamp"));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String stamp(Path file) throws IOException {
+		return Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+	}
+
+	private void writeManifest(String name, String key, boolean hit) throws IOException {
+		Path manifest = cacheDir.resolve(MANIFEST_FILE);
+		String line = String.join("\t", LocalDateTime.now().toString(), name, hit ? "HIT" : "MISS", key,
+			outputs.toString(), String.join(" ", command.subList(1, command.size()))) + "\n";
+		Files.writeString(manifest, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	private static Properties load(Path path) throws IOException {
+		Properties properties = new Properties();
+		if (Files.exists(path)) {
+			try (InputStream in = Files.newInputStream(path)) {
+				properties.load(in);
+			}
+		}
+		return properties;
+	}
+
+	private static void store(Properties properties, Path path) throws IOException {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			properties.store(out, "prepare step cache");
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,26 +1,45 @@
 package org.matsim.prepare;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.config.groups.FacilitiesConfigGroup;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacilitiesFactory;
+import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.FacilitiesFromPopulation;
 import org.matsim.facilities.FacilitiesUtils;
 import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.utils.GzipPopulationIO;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 @CommandLine.Command(
 	name = "facilities",
 	description = "Creates activity facilities out of a given plans file."
 )
 public class CreateFacilitiesFromPopulation implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(CreateFacilitiesFromPopulation.class);
 
 	@CommandLine.Option(names = "--input-population", description = "Input population from which the activity facilities should be generated.", required = true)
 	private String inputPopulationPath;
@@ -30,6 +49,16 @@ public class CreateFacilitiesFromPopulation implements MATSimAppCommand {
 	private String outputPopulationPath;
 	@CommandLine.Option(names = "--output-facilities", description = "Path to which the facilities should be written.", required = true)
 	private String outputFacilitiesPath;
+	@CommandLine.Option(names = "--location", defaultValue = "COORD", description = "How activity locations are aggregated into facilities: " +
+		"COORD = one facility per activity coordinate, GRID = one facility per grid cell, LINK = one facility per link and activity type. " +
+		"Note that with GRID, activities are moved to the centre of their cell and the link nearest to it, as the facility location is used for routing. Possible values: ${COMPLETION-CANDIDATES}")
+	private FacilityLocation location;
+	@CommandLine.Option(names = "--grid-size", defaultValue = "100", description = "Size of the grid cells in meter, if --location GRID is used.")
+	private double gridSize;
+	@CommandLine.Option(names = "--threads", defaultValue = "1", description = "Number of threads for the nearest link search, if --location is GRID or LINK.")
+	private int threads;
+	@CommandLine.Mixin
+	private final ShardOptions shard = new ShardOptions();
 
 	public static void main(String[] args) {
 		new CreateFacilitiesFromPopulation().execute(args);
@@ -37,14 +66,51 @@ public class CreateFacilitiesFromPopulation implements MATSimAppCommand {
 
 	@Override
 	public Integer call() {
+		if (shard.isSet() && outputPopulationPath == null) {
+			throw new IllegalArgumentException("--output-population is required together with --shard, otherwise the input population would be overwritten by the shard.");
+		}
+		if (shard.isSet() && location == FacilityLocation.COORD) {
+			throw new IllegalArgumentException("--shard requires --location GRID or LINK, as only their facility ids are the same in all shards and can be merged with merge-shards.");
+		}
+
+		Population population = GzipPopulationIO.readPopulation(inputPopulationPath);
+		shard.apply(population);
+
+		run(population);
+
+//		population might have changed so we write it
+		if (outputPopulationPath != null) {
+			GzipPopulationIO.writePopulation(population, outputPopulationPath);
+		} else {
+			GzipPopulationIO.writePopulation(population, inputPopulationPath);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Create and write facilities for the given population. Activities of the population are assigned to the facilities.
+	 */
+	void run(Population population) {
 //		load network and filter for car only. this also works for freight agents of all types as all freight modes are added whenever a link has car as allowed mode.
 		Network fullNetwork = NetworkUtils.readNetwork(networkPath);
 		TransportModeNetworkFilter filter = new TransportModeNetworkFilter(fullNetwork);
 		Network carOnlyNetwork = NetworkUtils.createNetwork();
 		filter.filter(carOnlyNetwork, Set.of(TransportMode.car));
 
-		Population population = PopulationUtils.readPopulation(inputPopulationPath);
+		ActivityFacilities facilities = location == FacilityLocation.COORD ?
+			createFacilitiesPerCoord(population, carOnlyNetwork) : createAggregatedFacilities(population, carOnlyNetwork);
 
+//		write facilities
+		FacilitiesWriter writer = new FacilitiesWriter(facilities);
+		writer.write(outputFacilitiesPath);
+
+		if (location != FacilityLocation.COORD) {
+			reportReduction(population, facilities);
+		}
+	}
+
+	private static ActivityFacilities createFacilitiesPerCoord(Population population, Network carOnlyNetwork) {
 		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
 		FacilitiesFromPopulation facilitiesFromPopulation = new FacilitiesFromPopulation(facilities);
@@ -55,18 +121,139 @@ public class CreateFacilitiesFromPopulation implements MATSimAppCommand {
 		facilitiesFromPopulation.setFacilitiesSource(FacilitiesConfigGroup.FacilitiesSource.onePerActivityLocationInPlansFile);
 
 		facilitiesFromPopulation.run(population);
+		return facilities;
+	}
 
-//		population might have changed so we write it
-		if (outputPopulationPath != null) {
-			PopulationUtils.writePopulation(population, outputPopulationPath);
-		} else {
-			PopulationUtils.writePopulation(population, inputPopulationPath);
+	/**
+	 * Create one facility per grid cell or per link and activity type. Activities keep their coordinates and links, but reference the aggregated facility.
+	 * As routing uses the location of the facility, activities are effectively moved to the facility: with LINK, only the coordinate is moved to the link,
+	 * with GRID, activities are moved to the cell centre and its nearest link, which might be another link than the one of the activity.
+	 * The displacement is logged, it is up to half the diagonal of a cell plus the distance of the centre to its link.
+	 * Activities without coordinate are located at their link.
+	 * The nearest link search is done in parallel, facilities are created in the order of the population, so that ids do not depend on the number of threads.
+	 */
+	private ActivityFacilities createAggregatedFacilities(Population population, Network carOnlyNetwork) {
+		List<Activity> activities = population.getPersons().values().stream()
+			.flatMap(person -> person.getPlans().stream())
+			.flatMap(plan -> TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities).stream())
+			.toList();
+
+		if (!carOnlyNetwork.getNodes().isEmpty()) {
+//			the spatial index of the network is built lazily. Build it once here instead of concurrently in the workers.
+			NetworkUtils.getNearestLink(carOnlyNetwork, carOnlyNetwork.getNodes().values().iterator().next().getCoord());
 		}
 
-//		write facilities
-		FacilitiesWriter writer = new FacilitiesWriter(facilities);
-		writer.write(outputFacilitiesPath);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		List<FacilityKey> keys;
+		try {
+			keys = pool.submit(() -> activities.parallelStream().map(act -> facilityKey(act, carOnlyNetwork)).toList()).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching nearest links.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not search nearest links.", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
 
-		return 0;
+		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+		ActivityFacilitiesFactory factory = facilities.getFactory();
+		double displacementSum = 0;
+		double maxDisplacement = 0;
+		for (int i = 0; i < activities.size(); i++) {
+			Activity act = activities.get(i);
+			FacilityKey key = keys.get(i);
+
+			double displacement = CoordUtils.calcEuclideanDistance(coordOf(act, carOnlyNetwork), key.coord());
+			displacementSum += displacement;
+			maxDisplacement = Math.max(maxDisplacement, displacement);
+
+			ActivityFacility facility = facilities.getFacilities().get(key.id());
+			if (facility == null) {
+				facility = factory.createActivityFacility(key.id(), key.coord(), key.linkId());
+				facilities.addActivityFacility(facility);
+			}
+			if (!facility.getActivityOptions().containsKey(act.getType())) {
+				facility.addActivityOption(factory.createActivityOption(act.getType()));
+			}
+			act.setFacilityId(facility.getId());
+		}
+
+		log.info("Activities are moved to their facility by {} m on average, and by at most {} m.",
+			activities.isEmpty() ? 0 : Math.round(displacementSum / activities.size()), Math.round(maxDisplacement));
+		return facilities;
+	}
+
+	private FacilityKey facilityKey(Activity act, Network carOnlyNetwork) {
+		Coord actCoord = coordOf(act, carOnlyNetwork);
+		if (location == FacilityLocation.GRID) {
+			long cellX = (long) Math.floor(actCoord.getX() / gridSize);
+			long cellY = (long) Math.floor(actCoord.getY() / gridSize);
+			Coord center = new Coord((cellX + 0.5) * gridSize, (cellY + 0.5) * gridSize);
+			Id<Link> linkId = NetworkUtils.getNearestLink(carOnlyNetwork, center).getId();
+			return new FacilityKey(Id.create(cellX + "_" + cellY, ActivityFacility.class), center, linkId);
+		}
+
+		Id<Link> linkId = act.getLinkId() != null && carOnlyNetwork.getLinks().containsKey(act.getLinkId()) ?
+			act.getLinkId() : NetworkUtils.getNearestLink(carOnlyNetwork, actCoord).getId();
+		Coord coord = carOnlyNetwork.getLinks().get(linkId).getCoord();
+		return new FacilityKey(Id.create(linkId + "_" + activityTypeClass(act.getType()), ActivityFacility.class), coord, linkId);
+	}
+
+	/**
+	 * Coordinate of an activity. Activities without coordinate are located at their link.
+	 */
+	private static Coord coordOf(Activity act, Network carOnlyNetwork) {
+		if (act.getCoord() != null) {
+			return act.getCoord();
+		}
+		if (act.getLinkId() != null && carOnlyNetwork.getLinks().containsKey(act.getLinkId())) {
+			return carOnlyNetwork.getLinks().get(act.getLinkId()).getCoord();
+		}
+		throw new IllegalArgumentException("Activity of type " + act.getType() + " has neither a coordinate nor a link of the car network, so it can not be assigned to a facility.");
+	}
+
+	/**
+	 * Activity type without duration suffix, e.g. home_3600 -> home.
+	 */
+	private static String activityTypeClass(String type) {
+		int idx = type.lastIndexOf('_');
+		if (idx > 0 && type.substring(idx + 1).chars().allMatch(Character::isDigit)) {
+			return type.substring(0, idx);
+		}
+		return type;
+	}
+
+	/**
+	 * Compare with the number of facilities, which would be created with one facility per coordinate.
+	 */
+	private void reportReduction(Population population, ActivityFacilities facilities) {
+		Set<Coord> coords = population.getPersons().values().stream()
+			.flatMap(person -> person.getPlans().stream())
+			.flatMap(plan -> TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities).stream())
+			.map(Activity::getCoord)
+			.collect(Collectors.toSet());
+
+		int perCoord = coords.size();
+		int aggregated = facilities.getFacilities().size();
+		long size;
+		try {
+			size = Files.size(Path.of(outputFacilitiesPath));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		log.info("Created {} facilities with location {} instead of {} facilities with one facility per coordinate ({}% less).",
+			aggregated, location, perCoord, perCoord == 0 ? 0 : Math.round(100. * (perCoord - aggregated) / perCoord));
+		log.info("Facilities file has {} KB, approx. {} KB with one facility per coordinate.",
+			size / 1024, aggregated == 0 ? 0 : size * perCoord / aggregated / 1024);
+	}
+
+	/**
+	 * Aggregation of activity locations into facilities.
+	 */
+	enum FacilityLocation {COORD, GRID, LINK}
+
+	private record FacilityKey(Id<ActivityFacility> id, Coord coord, Id<Link> linkId) {
 	}
 }
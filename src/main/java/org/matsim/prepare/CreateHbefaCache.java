@@ -0,0 +1,48 @@
+package org.matsim.prepare;
+
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.utils.HbefaTableCache;
+import org.matsim.utils.RemoteInputCache;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@CommandLine.Command(
+	name = "hbefa-cache",
+	description = "Download and decrypt the HBEFA tables once and store them in a local cache directory, which only the owner can read. " +
+		"The cache is used by emission runs and the simwrapper command via --hbefa-cache. Requires MATSIM_DECRYPTION_PASSWORD to be set."
+)
+public class CreateHbefaCache implements MATSimAppCommand {
+
+	@CommandLine.Option(names = "--output", defaultValue = "${env:MATSIM_HBEFA_CACHE}", description = "Cache directory. Defaults to env variable MATSIM_HBEFA_CACHE.")
+	private Path output;
+	@CommandLine.Option(names = "--input-cache", defaultValue = "${env:MATSIM_INPUT_CACHE}",
+		description = "Directory in which the encrypted remote files are cached. Defaults to env variable MATSIM_INPUT_CACHE. If not set, files are read remotely.")
+	private Path inputCache;
+
+	public static void main(String[] args) {
+		new CreateHbefaCache().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		if (output == null) {
+			throw new IllegalArgumentException("--output or MATSIM_HBEFA_CACHE is required.");
+		}
+
+		Map<String, String> sources = Arrays.stream(HbefaTableCache.Table.values())
+			.collect(Collectors.toMap(HbefaTableCache.Table::getUrl, HbefaTableCache.Table::getUrl));
+		if (inputCache != null) {
+			new RemoteInputCache(inputCache, false).resolve(sources.keySet()).forEach((url, file) -> sources.put(url, file.toString()));
+		}
+
+		for (HbefaTableCache.Table table : HbefaTableCache.Table.values()) {
+			HbefaTableCache.create(output, table, sources.get(table.getUrl()));
+		}
+
+		return 0;
+	}
+}
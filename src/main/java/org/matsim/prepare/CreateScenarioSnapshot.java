@@ -0,0 +1,51 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.facilities.MatsimFacilitiesReader;
+import org.matsim.run.scenarios.DresdenScenario;
+import org.matsim.utils.DresdenUtils;
+import org.matsim.utils.ScenarioSnapshot;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+
+@CommandLine.Command(
+	name = "snapshot",
+	description = "Write network and facilities, prepared like in DresdenScenario, into a binary snapshot. The snapshot can be passed to the scenario via --snapshot."
+)
+public class CreateScenarioSnapshot implements MATSimAppCommand {
+
+	@CommandLine.Option(names = "--network", description = "Path to network file", required = true)
+	private String networkFile;
+	@CommandLine.Option(names = "--facilities", description = "Path to activity facilities file", required = true)
+	private String facilitiesFile;
+	@CommandLine.Option(names = "--output", description = "Output path of the snapshot", required = true)
+	private Path output;
+	@CommandLine.Option(names = "--crs", defaultValue = "EPSG:25832", description = "Coordinate system of network and facilities. The snapshot is only used by runs with the same CRS.")
+	private String crs;
+	@CommandLine.Option(names = "--emissions", defaultValue = "ENABLED", description = "Define if hbefa link attributes should be added to the network.")
+	private DresdenUtils.FunctionalityHandling emissions;
+
+	public static void main(String[] args) {
+		new CreateScenarioSnapshot().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		new MatsimNetworkReader(scenario.getNetwork()).readFile(networkFile);
+		new MatsimFacilitiesReader(scenario).readFile(facilitiesFile);
+
+		DresdenScenario.prepareNetwork(scenario.getNetwork(), emissions);
+
+		ScenarioSnapshot.Source source = ScenarioSnapshot.Source.of(IOUtils.resolveFileOrResource(networkFile), IOUtils.resolveFileOrResource(facilitiesFile), crs);
+		ScenarioSnapshot.write(output, scenario, emissions == DresdenUtils.FunctionalityHandling.ENABLED, source);
+
+		return 0;
+	}
+}
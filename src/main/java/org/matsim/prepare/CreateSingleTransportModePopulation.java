@@ -6,9 +6,10 @@ import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.prepare.population.CleanPopulation;
-import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.algorithms.TripsToLegsAlgorithm;
 import org.matsim.core.router.RoutingModeMainModeIdentifier;
+import org.matsim.utils.PopulationStreamingUtils;
+import org.matsim.utils.GzipPopulationIO;
 import picocli.CommandLine;
 
 @CommandLine.Command(
@@ -24,6 +25,8 @@ public class CreateSingleTransportModePopulation implements MATSimAppCommand {
 	private String mode;
 	@CommandLine.Option(names = "--output", description = "Path to output population.", required = true)
 	private String output;
+	@CommandLine.Option(names = "--streaming", defaultValue = "false", description = "Process the population person by person instead of loading it into memory. Input and output may be the same file.")
+	private boolean streaming;
 
 	public static void main(final String[] args) {
 		new CreateSingleTransportModePopulation().execute(args);
@@ -32,11 +35,16 @@ public class CreateSingleTransportModePopulation implements MATSimAppCommand {
 
 	@Override
 	public Integer call() {
-		Population population = PopulationUtils.readPopulation(input);
+		if (streaming) {
+			TripsToLegsAlgorithm trips2Legs = new TripsToLegsAlgorithm(new RoutingModeMainModeIdentifier());
+			PopulationStreamingUtils.streamPopulation(input, output, person -> convertTripsToSingleModeLegs(person, trips2Legs, mode));
+		} else {
+			Population population = GzipPopulationIO.readPopulation(input);
 
-		convertTripsToSingleModeLegs(population, mode);
+			convertTripsToSingleModeLegs(population, mode);
 
-		PopulationUtils.writePopulation(population, output);
+			GzipPopulationIO.writePopulation(population, output);
+		}
 		logMessage(mode);
 		log.info("Output population written to: {}", output);
 
@@ -47,23 +55,27 @@ public class CreateSingleTransportModePopulation implements MATSimAppCommand {
 		TripsToLegsAlgorithm trips2Legs = new TripsToLegsAlgorithm(new RoutingModeMainModeIdentifier());
 
 		for (Person person : population.getPersons().values()) {
-			if (!person.getAttributes().getAttribute("subpopulation").equals("person")) {
-				continue;
-			}
+			convertTripsToSingleModeLegs(person, trips2Legs, mode);
+		}
+		logMessage(mode);
+	}
+
+	private static void convertTripsToSingleModeLegs(Person person, TripsToLegsAlgorithm trips2Legs, String mode) {
+		if (!person.getAttributes().getAttribute("subpopulation").equals("person")) {
+			return;
+		}
 
-			for (Plan plan : person.getPlans()) {
-//				transform all trips to single legs
-				trips2Legs.run(plan);
+		for (Plan plan : person.getPlans()) {
+//			transform all trips to single legs
+			trips2Legs.run(plan);
 
-				for (PlanElement el : plan.getPlanElements()) {
-					if (el instanceof Leg leg) {
-						CleanPopulation.removeRouteFromLeg(el);
-						leg.setMode(mode);
-					}
+			for (PlanElement el : plan.getPlanElements()) {
+				if (el instanceof Leg leg) {
+					CleanPopulation.removeRouteFromLeg(el);
+					leg.setMode(mode);
 				}
 			}
 		}
-		logMessage(mode);
 	}
 
 	private static void logMessage(String mode) {
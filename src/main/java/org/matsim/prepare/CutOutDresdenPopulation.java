@@ -2,11 +2,16 @@ package org.matsim.prepare;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CrsOptions;
@@ -22,18 +27,32 @@ import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.utils.GzipPopulationIO;
+import org.matsim.utils.PopulationStreamingUtils;
 import picocli.CommandLine;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 @CommandLine.Command(
 	name = "cutout",
 	description = "Cut out a population from a bigger population based on network routing and a shp file."
 )
 public class CutOutDresdenPopulation implements MATSimAppCommand {
-	Logger log = LogManager.getLogger(CutOutDresdenPopulation.class);
+	private static final Logger log = LogManager.getLogger(CutOutDresdenPopulation.class);
+	private static final int BATCH_SIZE = 100_000;
 
 	@CommandLine.Option(names = "--population", description = "Path to input population", required = true)
 	private String populationPath;
@@ -45,6 +64,18 @@ public class CutOutDresdenPopulation implements MATSimAppCommand {
 	private String outputPopulation;
 	@CommandLine.Option(names = "--network-mode", description = "Mode to be used for network routing", defaultValue = TransportMode.car)
 	private String mode;
+	@CommandLine.Option(names = "--threads", description = "Number of threads used for routing. Every thread uses its own router.", defaultValue = "1")
+	private int threads;
+	@CommandLine.Option(names = "--od-cache-size", description = "Max number of origin-destination link pairs for which the routing result is cached.", defaultValue = "5000000")
+	private int odCacheSize;
+	@CommandLine.Option(names = "--max-detour-factor", description = "Trips are only routed if the study area's bounding box lies within the ellipse of routes, " +
+		"which are at most this factor longer than the beeline. This is a heuristic: persons, whose only route through the study area is a longer detour, are dropped, " +
+		"so the output may differ from the exact cut-out. Default 0 routes all trips, for which no activity lies within the study area.", defaultValue = "0")
+	private double maxDetourFactor;
+	@CommandLine.Option(names = "--streaming", defaultValue = "false", description = "Process the population in batches instead of loading it into memory. Input and output may be the same file.")
+	private boolean streaming;
+	@CommandLine.Mixin
+	private final ShardOptions shard = new ShardOptions();
 	@CommandLine.Mixin
 	private CrsOptions crs;
 	@CommandLine.Mixin
@@ -60,60 +91,103 @@ public class CutOutDresdenPopulation implements MATSimAppCommand {
 		config.global().setCoordinateSystem(crs.getInputCRS());
 		config.network().setTimeVariantNetwork(true);
 
-		Population population = PopulationUtils.readPopulation(populationPath);
 		Network network = NetworkUtils.readNetwork(networkPath);
 
-		Geometry geom = shp.getGeometry(crs.getInputCRS());
+		Geometry shpGeom = shp.getGeometry(crs.getInputCRS());
+		Geometry geom = buffer != 0. ? shpGeom.buffer(buffer) : shpGeom;
 
-		if (buffer != 0.) {
-			geom = geom.buffer(buffer);
-		}
+		StudyAreaClassifier classifier = new StudyAreaClassifier(network, geom, maxDetourFactor, odCacheSize);
 
-		// Create router
+		// Create router factory. Every worker creates its own router, as LeastCostPathCalculators are not thread-safe.
+//		routing randomness is switched off, otherwise the routes (and thus the output) would depend on how persons are distributed over the threads.
+		config.routing().setRoutingRandomness(0.);
 		FreeSpeedTravelTime travelTime = new FreeSpeedTravelTime();
 		LeastCostPathCalculatorFactory fastAStarLandmarksFactory = new SpeedyALTFactory();
 		RandomizingTimeDistanceTravelDisutilityFactory disutilityFactory = new RandomizingTimeDistanceTravelDisutilityFactory(
 			mode, config);
-		TravelDisutility travelDisutility = disutilityFactory.createTravelDisutility(travelTime);
-		LeastCostPathCalculator router = fastAStarLandmarksFactory.createPathCalculator(network, travelDisutility,
-			travelTime);
 
-		Set<Id<Person>> relevantPersons = new HashSet<>();
-		personLoop:
-		for (Person person : population.getPersons().values()) {
-			for (Plan plan : person.getPlans()) {
-				for (TripStructureUtils.Trip trip : TripStructureUtils.getTrips(plan)) {
-					Link startLink = getLinkOfAct(trip.getOriginActivity(), network);
-					Link endLink = getLinkOfAct(trip.getDestinationActivity(), network);
-
-					LeastCostPathCalculator.Path route = router.calcLeastCostPath(startLink, endLink,
-						0, person, null);
-
-					for (Link link : route.links) {
-						if (MGC.coord2Point(link.getFromNode().getCoord()).within(geom) ||
-							MGC.coord2Point(link.getToNode().getCoord()).within(geom)) {
-							relevantPersons.add(person.getId());
-							// break out of planElement + plan loop, continue with next person
-							continue personLoop;
-						}
-					}
-				}
-			}
+		List<LeastCostPathCalculator> routers = new ArrayList<>();
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			TravelDisutility travelDisutility = disutilityFactory.createTravelDisutility(travelTime);
+			routers.add(fastAStarLandmarksFactory.createPathCalculator(network, travelDisutility, travelTime));
+		}
+
+		if (!network.getNodes().isEmpty()) {
+//			the spatial index of the network is built lazily. Build it once here instead of concurrently in the workers.
+			NetworkUtils.getNearestLink(network, network.getNodes().values().iterator().next().getCoord());
 		}
 
-		Population cutoutPopulation = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		log.info("Routing on {} thread(s).", routers.size());
+		ExecutorService executor = Executors.newFixedThreadPool(routers.size());
+		try {
+			if (streaming) {
+				PopulationStreamingUtils.filterPopulationInBatches(populationPath, outputPopulation, BATCH_SIZE,
+					batch -> filterRelevantPersons(shard.filter(batch), classifier, routers, executor));
+			} else {
+				Population population = GzipPopulationIO.readPopulation(populationPath);
+				List<Person> persons = shard.filter(population.getPersons().values());
+				List<Person> relevantPersons = filterRelevantPersons(persons, classifier, routers, executor);
 
-		for (Id<Person> personId : relevantPersons) {
-			cutoutPopulation.addPerson(population.getPersons().get(personId));
+				Population cutoutPopulation = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+				relevantPersons.forEach(cutoutPopulation::addPerson);
+
+				GzipPopulationIO.writePopulation(cutoutPopulation, outputPopulation);
+				log.info("{} persons of {} have been removed from the population because they do not touch the study area defined in --shp.",
+					persons.size() - relevantPersons.size(), persons.size());
+			}
+		} finally {
+			executor.shutdown();
 		}
 
-		PopulationUtils.writePopulation(cutoutPopulation, outputPopulation);
-		log.info("{} persons of {} have been removed from the population because they do not touch the study area defined in --shp.",
-			population.getPersons().size() - relevantPersons.size(), population.getPersons().size());
+		classifier.logStats();
 
 		return 0;
 	}
 
+	/**
+	 * Split persons into one chunk per router and classify the chunks in parallel.
+	 * The relevant persons are returned in the order of the input, independent of the number of threads.
+	 */
+	private static List<Person> filterRelevantPersons(List<Person> persons, StudyAreaClassifier classifier,
+		List<LeastCostPathCalculator> routers, ExecutorService executor) {
+		Set<Id<Person>> relevantPersonIds = ConcurrentHashMap.newKeySet();
+		int nChunks = Math.max(1, Math.min(routers.size(), persons.size()));
+		List<Callable<Void>> workers = new ArrayList<>();
+		for (int i = 0; i < nChunks; i++) {
+			List<Person> chunk = persons.subList(i * persons.size() / nChunks, (i + 1) * persons.size() / nChunks);
+			LeastCostPathCalculator router = routers.get(i);
+
+			workers.add(() -> {
+				for (Person person : chunk) {
+					if (classifier.touchesStudyArea(person, router)) {
+						relevantPersonIds.add(person.getId());
+					}
+				}
+				return null;
+			});
+		}
+
+		try {
+			for (Future<Void> future : executor.invokeAll(workers)) {
+//				propagate exceptions of the workers
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while classifying persons.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not classify persons.", e.getCause());
+		}
+
+		List<Person> relevantPersons = new ArrayList<>();
+		for (Person person : persons) {
+			if (relevantPersonIds.contains(person.getId())) {
+				relevantPersons.add(person);
+			}
+		}
+		return relevantPersons;
+	}
+
 	private static Link getLinkOfAct(Activity act, Network network) {
 		if (act.getLinkId() == null) {
 			return NetworkUtils.getNearestLink(network, act.getCoord());
@@ -121,4 +195,140 @@ public class CutOutDresdenPopulation implements MATSimAppCommand {
 			return network.getLinks().get(act.getLinkId());
 		}
 	}
+
+	/**
+	 * Decides for trips whether they touch the study area. The cheapest check is done first:
+	 * 1) origin or destination lie within the study area,
+	 * 2) the study area's bounding box lies outside the ellipse of all routes with a detour of at most maxDetourFactor (only if set, lossy),
+	 * 3) routing. As routing is neither randomized nor time-dependent here, the result only depends on start and end link and is cached per link pair.
+	 * Instances are thread-safe, the router has to be provided per thread.
+	 */
+	private static final class StudyAreaClassifier {
+		private final Network network;
+		private final PreparedGeometry studyArea;
+		private final Envelope envelope;
+		private final BitSet linksInArea;
+		private final double maxDetourFactor;
+		private final int maxCacheSize;
+		private final Map<Long, Boolean> odCache = new ConcurrentHashMap<>();
+
+		private final LongAdder insideTrips = new LongAdder();
+		private final LongAdder outsideEllipseTrips = new LongAdder();
+		private final LongAdder cacheHits = new LongAdder();
+		private final LongAdder routedTrips = new LongAdder();
+
+		private StudyAreaClassifier(Network network, Geometry geom, double maxDetourFactor, int maxCacheSize) {
+			this.network = network;
+			this.studyArea = PreparedGeometryFactory.prepare(geom);
+			this.envelope = geom.getEnvelopeInternal();
+			this.maxDetourFactor = maxDetourFactor;
+			this.maxCacheSize = maxCacheSize;
+//			classify every link once instead of testing the nodes of every routed link against the geometry
+			this.linksInArea = classifyLinks();
+		}
+
+		/**
+		 * Check if any trip of any plan of the person touches the study area.
+		 */
+		private boolean touchesStudyArea(Person person, LeastCostPathCalculator router) {
+			for (Plan plan : person.getPlans()) {
+				for (TripStructureUtils.Trip trip : TripStructureUtils.getTrips(plan)) {
+					if (tripTouchesStudyArea(trip, person, router)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private boolean tripTouchesStudyArea(TripStructureUtils.Trip trip, Person person, LeastCostPathCalculator router) {
+			Activity origin = trip.getOriginActivity();
+			Activity destination = trip.getDestinationActivity();
+
+			if (isInside(origin.getCoord()) || isInside(destination.getCoord())) {
+				insideTrips.increment();
+				return true;
+			}
+
+			Link startLink = getLinkOfAct(origin, network);
+			Link endLink = getLinkOfAct(destination, network);
+
+//			routes start at the to node of the start link and end at the from node of the end link
+			if (maxDetourFactor > 0 && isOutsideDetourEllipse(startLink.getToNode().getCoord(), endLink.getFromNode().getCoord())) {
+				outsideEllipseTrips.increment();
+				return false;
+			}
+
+			long key = ((long) startLink.getId().index() << 32) | endLink.getId().index();
+			Boolean cached = odCache.get(key);
+			if (cached != null) {
+				cacheHits.increment();
+				return cached;
+			}
+
+			routedTrips.increment();
+			boolean touches = routeTouchesStudyArea(router.calcLeastCostPath(startLink, endLink, 0, person, null));
+			if (odCache.size() < maxCacheSize) {
+				odCache.put(key, touches);
+			}
+			return touches;
+		}
+
+		private boolean isInside(Coord coord) {
+			return coord != null && envelope.contains(coord.getX(), coord.getY()) && studyArea.contains(MGC.coord2Point(coord));
+		}
+
+		/**
+		 * Every point p of a route, which is at most maxDetourFactor times longer than the beeline, satisfies |from p| + |p to| <= maxDetourFactor * |from to|.
+		 * The sum of the distances to the study area's bounding box is a lower bound of |from p| + |p to| for all p within the study area.
+		 */
+		private boolean isOutsideDetourEllipse(Coord from, Coord to) {
+			double maxLength = maxDetourFactor * CoordUtils.calcEuclideanDistance(from, to);
+			return distanceToEnvelope(from) + distanceToEnvelope(to) > maxLength;
+		}
+
+		private double distanceToEnvelope(Coord coord) {
+			double dx = Math.max(0, Math.max(envelope.getMinX() - coord.getX(), coord.getX() - envelope.getMaxX()));
+			double dy = Math.max(0, Math.max(envelope.getMinY() - coord.getY(), coord.getY() - envelope.getMaxY()));
+			return Math.sqrt(dx * dx + dy * dy);
+		}
+
+		private boolean routeTouchesStudyArea(LeastCostPathCalculator.Path route) {
+			for (Link link : route.links) {
+				if (linksInArea.get(link.getId().index())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Mark all links, of which the from or to node lies within the study area. The resulting bitmap is indexed by link id index.
+		 */
+		private BitSet classifyLinks() {
+			BitSet nodesInArea = new BitSet(Id.getNumberOfIds(Node.class));
+			for (Node node : network.getNodes().values()) {
+				if (isInside(node.getCoord())) {
+					nodesInArea.set(node.getId().index());
+				}
+			}
+
+			BitSet links = new BitSet(Id.getNumberOfIds(Link.class));
+			for (Link link : network.getLinks().values()) {
+				if (nodesInArea.get(link.getFromNode().getId().index()) || nodesInArea.get(link.getToNode().getId().index())) {
+					links.set(link.getId().index());
+				}
+			}
+
+			log.info("{} of {} network links touch the study area.", links.cardinality(), network.getLinks().size());
+			return links;
+		}
+
+		private void logStats() {
+			log.info("Trips with origin or destination within the study area: {}", insideTrips.sum());
+			log.info("Trips outside of the detour ellipse (not routed): {}", outsideEllipseTrips.sum());
+			log.info("Trips resolved by the OD cache: {}", cacheHits.sum());
+			log.info("Routed trips: {} ({} cached link pairs)", routedTrips.sum(), odCache.size());
+		}
+	}
 }
@@ -0,0 +1,107 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.ActivityOption;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.facilities.MatsimFacilitiesReader;
+import org.matsim.utils.PopulationStreamingUtils;
+import picocli.CommandLine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+@CommandLine.Command(
+	name = "merge-shards",
+	description = "Merge the outputs of a prepare command, which has been run with --shard i/n for every shard. " +
+		"Persons are written in the order of the input population, which has been sharded."
+)
+public class MergeShards implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(MergeShards.class);
+
+	@CommandLine.Parameters(arity = "1..*", paramLabel = "INPUT", description = "Population files of all shards.")
+	private List<String> inputs;
+	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
+	private String output;
+	@CommandLine.Option(names = "--facilities", arity = "1..*", description = "Facility files of all shards (from the facilities command with --location GRID or LINK).")
+	private List<String> facilities = new ArrayList<>();
+	@CommandLine.Option(names = "--output-facilities", description = "Path to output facilities. Required if --facilities is given.")
+	private String outputFacilities;
+
+	public static void main(String[] args) {
+		new MergeShards().execute(args);
+	}
+
+	@Override
+	public Integer call() {
+		if (!facilities.isEmpty() && outputFacilities == null) {
+			throw new IllegalArgumentException("--output-facilities is required to merge facilities.");
+		}
+
+//		persons are merged by their index in the sharded input population, the index is not needed anymore afterward
+		PopulationStreamingUtils.mergePopulations(inputs, output, MergeShards::inputIndex,
+			person -> person.getAttributes().removeAttribute(ShardOptions.INPUT_INDEX_ATTRIBUTE));
+
+		if (!facilities.isEmpty()) {
+			ActivityFacilities merged = mergeFacilities();
+			new FacilitiesWriter(merged).write(outputFacilities);
+			log.info("Merged facilities written to: {}", outputFacilities);
+		}
+
+		return 0;
+	}
+
+	private static long inputIndex(Person person) {
+		if (!(person.getAttributes().getAttribute(ShardOptions.INPUT_INDEX_ATTRIBUTE) instanceof Number index)) {
+			throw new IllegalStateException("Person " + person.getId() + " has no attribute " + ShardOptions.INPUT_INDEX_ATTRIBUTE + ". Only outputs of commands run with --shard can be merged.");
+		}
+		return index.longValue();
+	}
+
+	/**
+	 * Facilities keep their ids, so the facility ids of the activities remain valid. Facilities with the same id are created by several shards,
+	 * e.g. for the same grid cell. They have to be at the same location and are merged into one facility with the union of the activity options.
+	 */
+	private ActivityFacilities mergeFacilities() {
+		ActivityFacilities merged = FacilitiesUtils.createActivityFacilities();
+		int total = 0;
+
+		for (String path : facilities) {
+			Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+			new MatsimFacilitiesReader(scenario).readFile(path);
+
+			for (ActivityFacility facility : scenario.getActivityFacilities().getFacilities().values()) {
+				total++;
+				ActivityFacility target = merged.getFacilities().get(facility.getId());
+				if (target == null) {
+					target = merged.getFactory().createActivityFacility(facility.getId(), facility.getCoord(), facility.getLinkId());
+					merged.addActivityFacility(target);
+				} else if (!Objects.equals(target.getCoord(), facility.getCoord()) || !Objects.equals(target.getLinkId(), facility.getLinkId())) {
+					throw new IllegalStateException("Facility " + facility.getId() + " of " + path + " has another location than the facility with the same id of another shard. " +
+						"Facilities of shards can only be merged, if their ids are derived from their location, i.e. with --location GRID or LINK.");
+				}
+
+				for (ActivityOption option : facility.getActivityOptions().values()) {
+					if (!target.getActivityOptions().containsKey(option.getType())) {
+						ActivityOption copy = merged.getFactory().createActivityOption(option.getType());
+						copy.setCapacity(option.getCapacity());
+						option.getOpeningTimes().forEach(copy::addOpeningTime);
+						target.addActivityOption(copy);
+					}
+				}
+			}
+		}
+
+		log.info("Merged {} facilities of {} shards into {} facilities.", total, facilities.size(), merged.getFacilities().size());
+		return merged;
+	}
+}
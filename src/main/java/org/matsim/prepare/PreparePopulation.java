@@ -9,9 +9,11 @@ import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.prepare.population.ExtractHomeCoordinates;
 import org.matsim.core.population.PersonUtils;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.utils.DresdenUtils;
+import org.matsim.utils.PopulationStreamingUtils;
+import org.matsim.utils.GzipPopulationIO;
 import picocli.CommandLine;
 
 import java.math.BigDecimal;
@@ -20,16 +22,18 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
 @CommandLine.Command(
 	name = "population",
 	description = "Prepares person attributes and plans."
 )
-public class PreparePopulation implements MATSimAppCommand {
+public class PreparePopulation implements MATSimAppCommand, PersonAlgorithm {
 
 	private static final Logger log = LogManager.getLogger(PreparePopulation.class);
 
-	private final SplittableRandom rnd = new SplittableRandom(1234);
+	private static final long SEED = 1234;
+	private static final int BATCH_SIZE = 100_000;
 
 	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Path to input population")
 	private Path input;
@@ -37,6 +41,15 @@ public class PreparePopulation implements MATSimAppCommand {
 	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
 	private Path output;
 
+	@CommandLine.Option(names = "--threads", defaultValue = "1", description = "Number of threads to process persons with. The output does not depend on the number of threads.")
+	private int threads;
+
+	@CommandLine.Option(names = "--streaming", defaultValue = "false", description = "Process the population person by person instead of loading it into memory. Input and output may be the same file.")
+	private boolean streaming;
+
+	@CommandLine.Mixin
+	private final ShardOptions shard = new ShardOptions();
+
 	public static void main(String[] args) {
 		new PreparePopulation().execute(args);
 	}
@@ -54,19 +67,38 @@ public class PreparePopulation implements MATSimAppCommand {
 		}
 
 
-		Population population = PopulationUtils.readPopulation(input.toString());
-
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			if (streaming) {
+				PopulationStreamingUtils.filterPopulationInBatches(input.toString(), output.toString(), BATCH_SIZE, batch -> {
+					List<Person> persons = shard.filter(batch);
+					pool.submit(() -> persons.parallelStream().forEach(this::prepare)).join();
+					return persons;
+				});
+				return 0;
+			}
 
-		population.getPersons().values().forEach(this::prepare);
+			Population population = GzipPopulationIO.readPopulation(input.toString());
+			shard.apply(population);
 
+			pool.submit(() -> population.getPersons().values().parallelStream().forEach(this::prepare)).get();
 
-		PopulationUtils.writePopulation(population, output.toString());
+			GzipPopulationIO.writePopulation(population, output.toString());
+		} finally {
+			pool.shutdown();
+		}
 
 		return 0;
 	}
 
+	@Override
+	public void run(Person person) {
+		prepare(person);
+	}
+
 	/**
 	 * This step runs before any other steps.
+	 * Persons are processed in parallel, thus this method must only modify the given person.
 	 */
 	private void prepare(Person person) {
 
@@ -117,6 +149,8 @@ public class PreparePopulation implements MATSimAppCommand {
 			householdSize = Double.parseDouble(householdSizeString);
 		}
 
+//		the random stream is derived from the person id. Thus, the income does not depend on the order of the persons or on the number of threads.
+		SplittableRandom rnd = new SplittableRandom(SEED * 31 + person.getId().toString().hashCode());
 		double income = switch (incomeGroup) {
 			case 1 -> 500 / householdSize;
 			case 2 -> (rnd.nextInt(400) + 500) / householdSize;
@@ -0,0 +1,205 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.prepare.population.FixSubtourModes;
+import org.matsim.application.prepare.population.SplitActivityTypesDuration;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.utils.GzipPopulationIO;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+@CommandLine.Command(
+	name = "pipeline",
+	description = "Run several population prepare steps on one in-memory population. The steps of this project are applied in memory. " +
+		"The steps fix-subtour-modes and split-activity-types-duration of the application contrib still write and read the population via temporary files. " +
+		"Apart from these, only the final population (and its samples) is written."
+)
+public class PreparePopulationPipeline implements MATSimAppCommand {
+	private static final Logger log = LogManager.getLogger(PreparePopulationPipeline.class);
+
+	private static final String PLACEHOLDER = "pipeline";
+
+	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Path to input population")
+	private String input;
+	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
+	private String output;
+	@CommandLine.Option(names = "--step", required = true, description = "Step to run, given as command name followed by its options, but without input and output, " +
+		"e.g. \"fix-subtour-modes --coord-dist 100\". Supported: population, remove-vehicles, fix-subtour-modes, split-activity-types-duration, " +
+		"merge-populations, facilities, downsample-population. Steps are run in the given order.")
+	private List<String> steps;
+	@CommandLine.Option(names = "--threads", defaultValue = "1", description = "Number of threads for the steps population and remove-vehicles, which are applied per person. " +
+		"The output does not depend on the number of threads.")
+	private int threads;
+
+	private final List<Double> samples = new ArrayList<>();
+	private double sampleSize = 1.;
+
+	public static void main(String[] args) {
+		new PreparePopulationPipeline().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		Population population = GzipPopulationIO.readPopulation(input);
+
+		for (String step : steps) {
+			String[] tokens = step.trim().split("\\s+");
+			String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
+
+			log.info("Running step: {}", step);
+			Instant start = Instant.now();
+			population = runStep(tokens[0], args, population);
+			log.info("Step {} took {} s.", tokens[0], Duration.between(start, Instant.now()).toSeconds());
+		}
+
+		GzipPopulationIO.writePopulation(population, output);
+		log.info("Output population written to: {}", output);
+
+		writeSamples(population);
+
+		return 0;
+	}
+
+	private Population runStep(String name, String[] args, Population population) throws IOException {
+		switch (name) {
+			case "population" -> runPersonAlgorithm(new PreparePopulation(), args, population, PLACEHOLDER, "--output", PLACEHOLDER);
+			case "remove-vehicles" -> runPersonAlgorithm(new RemoveVehicleInformationFromPopulation(), args, population, PLACEHOLDER, "--output", PLACEHOLDER);
+			case "fix-subtour-modes" -> {
+				return runCommand(new FixSubtourModes(), args, population);
+			}
+			case "split-activity-types-duration" -> {
+				return runCommand(new SplitActivityTypesDuration(), args, population);
+			}
+			case "facilities" -> {
+				CreateFacilitiesFromPopulation facilities = new CreateFacilitiesFromPopulation();
+				new CommandLine(facilities).parseArgs(withArgs(args, "--input-population", PLACEHOLDER));
+				facilities.run(population);
+			}
+			case "merge-populations" -> {
+				MergeArgs merge = new MergeArgs();
+				new CommandLine(merge).parseArgs(args);
+				for (String path : merge.populations) {
+					GzipPopulationIO.readPopulation(path).getPersons().values().forEach(population::addPerson);
+				}
+			}
+			case "downsample-population" -> {
+				DownSampleArgs downSample = new DownSampleArgs();
+				new CommandLine(downSample).parseArgs(args);
+				sampleSize = downSample.sampleSize;
+				samples.addAll(downSample.samples);
+			}
+			default -> throw new IllegalArgumentException("Unknown pipeline step: " + name);
+		}
+		return population;
+	}
+
+	/**
+	 * Parse the options of a command, which is also a thread-safe {@link PersonAlgorithm}, and apply it to every person with --threads threads.
+	 * Input and output arguments are required by the command, but not used here. Thus, placeholders are passed.
+	 */
+	private void runPersonAlgorithm(PersonAlgorithm algorithm, String[] args, Population population, String... placeholderArgs) {
+		new CommandLine(algorithm).parseArgs(withArgs(args, placeholderArgs));
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.submit(() -> population.getPersons().values().parallelStream().forEach(algorithm::run)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running " + algorithm.getClass().getSimpleName(), e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not run " + algorithm.getClass().getSimpleName(), e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Run a command of the application contrib with --input and --output options. The population is passed to the command via temporary files,
+	 * i.e. these steps still cost one write and one read of the whole population each.
+	 * The commands are not applied per person in memory, even if they are person algorithms, because their call() may initialise state,
+	 * which is used by run(person), and this is not part of their contract. Only the steps of this project are applied per person.
+	 * Temporary files are created next to the output, as the temp directory might be too small for large populations.
+	 */
+	private Population runCommand(MATSimAppCommand command, String[] args, Population population) throws IOException {
+		Path dir = Path.of(output).toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmpInput = Files.createTempFile(dir, "pipeline-input", ".plans.xml.gz");
+		Path tmpOutput = Files.createTempFile(dir, "pipeline-output", ".plans.xml.gz");
+		try {
+			GzipPopulationIO.writePopulation(population, tmpInput.toString());
+			int code = new CommandLine(command).execute(withArgs(args, "--input", tmpInput.toString(), "--output", tmpOutput.toString()));
+			if (code != 0) {
+				throw new IllegalStateException("Command " + command.getClass().getSimpleName() + " returned exit code " + code);
+			}
+			return GzipPopulationIO.readPopulation(tmpOutput.toString());
+		} finally {
+			Files.deleteIfExists(tmpInput);
+			Files.deleteIfExists(tmpOutput);
+		}
+	}
+
+	private static String[] withArgs(String[] args, String... additional) {
+		return Stream.concat(Arrays.stream(args), Arrays.stream(additional)).toArray(String[]::new);
+	}
+
+	/**
+	 * Write down-sampled populations like {@link org.matsim.application.prepare.population.DownSamplePopulation}.
+	 * Samples are drawn from each other in descending order.
+	 */
+	private void writeSamples(Population population) {
+		String sizeName = pct(sampleSize);
+		if (!samples.isEmpty() && !output.contains(sizeName)) {
+			throw new IllegalArgumentException("Output path " + output + " must contain the sample size " + sizeName + " to write down-sampled populations.");
+		}
+
+		double current = sampleSize;
+		for (double sample : samples.stream().sorted(Comparator.reverseOrder()).toList()) {
+			PopulationUtils.sampleDown(population, sample / current);
+			current = sample;
+
+			String path = output.replace(sizeName, pct(sample));
+			GzipPopulationIO.writePopulation(population, path);
+			log.info("Sample {} written to: {}", sample, path);
+		}
+	}
+
+	private static String pct(double sample) {
+		return new DecimalFormat("#.###", DecimalFormatSymbols.getInstance(Locale.US)).format(sample * 100) + "pct";
+	}
+
+	/**
+	 * Options of the merge-populations step.
+	 */
+	private static final class MergeArgs {
+		@CommandLine.Parameters(arity = "1..*", description = "Populations to merge into the current population")
+		private List<String> populations;
+	}
+
+	/**
+	 * Options of the downsample-population step.
+	 */
+	private static final class DownSampleArgs {
+		@CommandLine.Option(names = "--sample-size", description = "Sample size of the population", required = true)
+		private double sampleSize;
+		@CommandLine.Option(names = "--samples", description = "Desired down-sampled sizes in (0, 1]", arity = "1..*", required = true)
+		private List<Double> samples;
+	}
+}
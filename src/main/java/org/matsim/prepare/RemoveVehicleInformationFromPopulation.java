@@ -6,7 +6,9 @@ import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.utils.GzipPopulationIO;
+import org.matsim.utils.PopulationStreamingUtils;
 import org.matsim.vehicles.VehicleType;
 import org.matsim.vehicles.VehicleUtils;
 import picocli.CommandLine;
@@ -14,12 +16,13 @@ import picocli.CommandLine;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @CommandLine.Command(
 	name = "remove-vehicles",
 	description = "Remove person attributes for vehicles and vehicle types from population."
 )
-public class RemoveVehicleInformationFromPopulation implements MATSimAppCommand {
+public class RemoveVehicleInformationFromPopulation implements MATSimAppCommand, PersonAlgorithm {
 	private static final Logger log = LogManager.getLogger(RemoveVehicleInformationFromPopulation.class);
 
 	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Path to input population")
@@ -28,6 +31,15 @@ public class RemoveVehicleInformationFromPopulation implements MATSimAppCommand
 	private String output;
 	@CommandLine.Option(names = "--skip", description = "List of modes to skip for vehicle type deletion. Separated by ,", split = ",")
 	private List<String> modesToSkip = new ArrayList<>();
+	@CommandLine.Option(names = "--streaming", defaultValue = "false", description = "Process the population person by person instead of loading it into memory. Input and output may be the same file.")
+	private boolean streaming;
+	@CommandLine.Mixin
+	private final ShardOptions shard = new ShardOptions();
+
+//	counters are atomic, as the pipeline command applies this algorithm to persons in parallel
+	private final AtomicInteger personCount = new AtomicInteger();
+	private final AtomicInteger vehicleCount = new AtomicInteger();
+	private final AtomicInteger vehicleTypeCount = new AtomicInteger();
 
 	public static void main(String[] args) {
 		new RemoveVehicleInformationFromPopulation().execute(args);
@@ -35,42 +47,57 @@ public class RemoveVehicleInformationFromPopulation implements MATSimAppCommand
 
 	@Override
 	public Integer call() {
-		Population population = PopulationUtils.readPopulation(input);
+		if (streaming) {
+			PopulationStreamingUtils.filterPopulation(input, output, person -> {
+				if (!shard.select(person)) {
+					return false;
+				}
+				removeVehicleInformation(person);
+				return true;
+			});
+		} else {
+			Population population = GzipPopulationIO.readPopulation(input);
+			shard.apply(population);
+			population.getPersons().values().forEach(this::removeVehicleInformation);
+			GzipPopulationIO.writePopulation(population, output);
+		}
 
-		int vehicleCount = 0;
-		int vehicleTypeCount = 0;
+		log.info("For {} of {} persons the attribute vehicles has been removed.", vehicleCount, personCount);
+		log.info("For {} of {} persons the attribute vehicleTypes has been removed.", vehicleTypeCount, personCount);
+		log.info("Output population written to: {}", output);
 
-		for (Person person : population.getPersons().values()) {
+		return 0;
+	}
 
-			Map<String, Id<VehicleType>> types = VehicleUtils.getVehicleTypes(person);
+	@Override
+	public void run(Person person) {
+		removeVehicleInformation(person);
+	}
 
-			boolean skipPerson = false;
-			if (types != null) {
-				for (String mode : modesToSkip) {
-					if (types.containsKey(mode)) {
-						skipPerson = true;
-						break;
-					}
-				}
-			}
+	private void removeVehicleInformation(Person person) {
+		personCount.incrementAndGet();
 
-			if (types != null && !skipPerson) {
-				person.getAttributes().removeAttribute("vehicleTypes");
-				vehicleTypeCount++;
-			}
+		Map<String, Id<VehicleType>> types = VehicleUtils.getVehicleTypes(person);
 
-//			if attrs are present, delete them from person.
-			if (person.getAttributes().getAttribute("vehicles") != null) {
-				person.getAttributes().removeAttribute("vehicles");
-				vehicleCount++;
+		boolean skipPerson = false;
+		if (types != null) {
+			for (String mode : modesToSkip) {
+				if (types.containsKey(mode)) {
+					skipPerson = true;
+					break;
+				}
 			}
 		}
-		PopulationUtils.writePopulation(population, output);
 
-		log.info("For {} of {} persons the attribute vehicles has been removed.", vehicleCount, population.getPersons().size());
-		log.info("For {} of {} persons the attribute vehicleTypes has been removed.", vehicleTypeCount, population.getPersons().size());
-		log.info("Output population written to: {}", output);
+		if (types != null && !skipPerson) {
+			person.getAttributes().removeAttribute("vehicleTypes");
+			vehicleTypeCount.incrementAndGet();
+		}
 
-		return 0;
+//		if attrs are present, delete them from person.
+		if (person.getAttributes().getAttribute("vehicles") != null) {
+			person.getAttributes().removeAttribute("vehicles");
+			vehicleCount.incrementAndGet();
+		}
 	}
 }
@@ -0,0 +1,111 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import picocli.CommandLine;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Option to process only a part (shard) of the persons of a population. Persons are assigned to shards by the hash of their id.
+ * The hash only depends on the id string, so every JVM assigns a person to the same shard.
+ * Outputs of all shards can be put back together with {@link MergeShards}.
+ * Persons of a shard are tagged with their index in the input population, so that the merge restores the order of the input.
+ */
+public final class ShardOptions {
+	private static final Logger log = LogManager.getLogger(ShardOptions.class);
+
+	/**
+	 * Person attribute with the index of the person in the input population, which has been sharded.
+	 */
+	public static final String INPUT_INDEX_ATTRIBUTE = "shardInputIndex";
+
+	private int index;
+	private int count = 1;
+	private long inputIndex;
+
+	@CommandLine.Option(names = "--shard", paramLabel = "i/n", description = "Only process persons of shard i out of n shards (i = 0..n-1). " +
+		"Outputs only contain the persons of this shard and can be merged with merge-shards.")
+	void setShard(String value) {
+		String[] parts = value.split("/");
+		if (parts.length != 2) {
+			throw new IllegalArgumentException("Shard must be given as i/n, but was " + value);
+		}
+		int i = Integer.parseInt(parts[0].trim());
+		int n = Integer.parseInt(parts[1].trim());
+		if (n < 1 || i < 0 || i >= n) {
+			throw new IllegalArgumentException("Shard index must be in 0.." + (n - 1) + " for " + n + " shards, but was " + value);
+		}
+		this.index = i;
+		this.count = n;
+	}
+
+	/**
+	 * Whether the persons are split into more than one shard.
+	 */
+	public boolean isSet() {
+		return count > 1;
+	}
+
+	/**
+	 * Whether the person belongs to this shard. Always true, if no shard is set.
+	 */
+	public boolean contains(Person person) {
+		return !isSet() || shardOf(person.getId(), count) == index;
+	}
+
+	/**
+	 * Select the next person of the input. Persons have to be selected in input order, every person exactly once.
+	 * Persons of this shard are tagged with their input index, if they have not been tagged by an earlier sharded command.
+	 *
+	 * @return whether the person belongs to this shard
+	 */
+	public boolean select(Person person) {
+		long i = inputIndex++;
+		if (!contains(person)) {
+			return false;
+		}
+		if (isSet() && person.getAttributes().getAttribute(INPUT_INDEX_ATTRIBUTE) == null) {
+			person.getAttributes().putAttribute(INPUT_INDEX_ATTRIBUTE, i);
+		}
+		return true;
+	}
+
+	/**
+	 * Select the persons of this shard, in the given order. See {@link #select(Person)}.
+	 */
+	public List<Person> filter(Collection<Person> persons) {
+		return persons.stream().filter(this::select).toList();
+	}
+
+	/**
+	 * Remove all persons from the population, which do not belong to this shard.
+	 */
+	public void apply(Population population) {
+		if (!isSet()) {
+			return;
+		}
+
+		int before = population.getPersons().size();
+		List<Id<Person>> others = population.getPersons().values().stream().filter(person -> !select(person)).map(Person::getId).toList();
+		others.forEach(population::removePerson);
+		log.info("Shard {}/{}: processing {} of {} persons.", index, count, population.getPersons().size(), before);
+	}
+
+	/**
+	 * Shard of a person id. The string hash is mixed, because ids often only differ in their last characters.
+	 */
+	static int shardOf(Id<Person> id, int count) {
+		int h = id.toString().hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return Math.floorMod(h, count);
+	}
+}
@@ -0,0 +1,82 @@
+package org.matsim.run.pt;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.vsp.pt.fare.ChainedPtFareCalculator;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Chained pt fare calculator, which caches the fare per pair of access and egress stop.
+ * Fare zone and distance class only depend on the stops, so the point in polygon tests and distance lookups of the chained calculators are done once per stop pair.
+ * Stops are resolved from the coordinates of the pt interaction activities with an index built at startup. Other coordinates are not cached.
+ */
+public final class CachingPtFareCalculator extends ChainedPtFareCalculator implements IterationEndsListener {
+	private static final Logger log = LogManager.getLogger(CachingPtFareCalculator.class);
+
+	private final Map<Coord, Integer> stopIndex = new HashMap<>();
+	private final BiFunction<Coord, Coord, Optional<FareResult>> fares;
+	private final Map<Long, Optional<FareResult>> cache = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong uncached = new AtomicLong();
+
+	@Inject
+	CachingPtFareCalculator(Scenario scenario) {
+		this(scenario.getTransitSchedule().getFacilities().values().stream().map(TransitStopFacility::getCoord).toList(), null);
+	}
+
+	/**
+	 * Create the cache for the given stop coordinates. The fares are calculated by the given function, or by the chained calculators, if it is null.
+	 */
+	CachingPtFareCalculator(Collection<Coord> stops, BiFunction<Coord, Coord, Optional<FareResult>> fares) {
+		this.fares = fares == null ? super::calculateFare : fares;
+		for (Coord stop : stops) {
+			stopIndex.putIfAbsent(stop, stopIndex.size());
+		}
+		log.info("Pt fares are cached for pairs of {} distinct stop locations.", stopIndex.size());
+	}
+
+	@Override
+	public Optional<FareResult> calculateFare(Coord from, Coord to) {
+		Integer fromStop = stopIndex.get(from);
+		Integer toStop = stopIndex.get(to);
+		if (fromStop == null || toStop == null) {
+			uncached.incrementAndGet();
+			return fares.apply(from, to);
+		}
+
+		long key = ((long) fromStop << 32) | toStop;
+		Optional<FareResult> fare = cache.get(key);
+		if (fare != null) {
+			hits.incrementAndGet();
+			return fare;
+		}
+
+		misses.incrementAndGet();
+		return cache.computeIfAbsent(key, k -> fares.apply(from, to));
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		long h = hits.getAndSet(0);
+		long m = misses.getAndSet(0);
+		long u = uncached.getAndSet(0);
+		long total = h + m + u;
+		log.info("Pt fare cache in iteration {}: {} fares, {} hits, {} misses, {} uncached, hit rate {}. {} stop pairs cached.",
+			event.getIteration(), total, h, m, u, total == 0 ? 0 : (double) h / total, cache.size());
+	}
+}
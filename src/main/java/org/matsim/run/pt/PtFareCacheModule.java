@@ -0,0 +1,17 @@
+package org.matsim.run.pt;
+
+import com.google.inject.Singleton;
+import org.matsim.contrib.vsp.pt.fare.ChainedPtFareCalculator;
+import org.matsim.core.controler.AbstractModule;
+
+/**
+ * Replaces the chained pt fare calculator of the PtFareModule by the {@link CachingPtFareCalculator}. Has to be added after the PtFareModule.
+ */
+public final class PtFareCacheModule extends AbstractModule {
+	@Override
+	public void install() {
+		bind(CachingPtFareCalculator.class).in(Singleton.class);
+		bind(ChainedPtFareCalculator.class).to(CachingPtFareCalculator.class);
+		addControlerListenerBinding().to(CachingPtFareCalculator.class);
+	}
+}
@@ -0,0 +1,371 @@
+package org.matsim.run.pt;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.routing.pt.raptor.DefaultRaptorStopFinder;
+import ch.sbb.matsim.routing.pt.raptor.InitialStop;
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStopFinder;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.RoutingConfigGroup;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.Facility;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stop finder for walk access and egress to pt, which keeps the candidate stops and walk distances per location.
+ * Candidates of all activity facilities are computed in parallel at startup and can be saved to and loaded from disk.
+ * Locations, which are not facilities, are computed on first use. Walk times and costs are derived from the cached beeline distances for every query.
+ * Queries, which are not covered (e.g. other intermodal modes than walk), are passed to the {@link DefaultRaptorStopFinder}.
+ * <p>
+ * With large search radii, every location has many candidates. The cache is therefore bounded by a memory budget,
+ * locations beyond the budget are computed for every query.
+ */
+public final class WalkAccessStopCache implements RaptorStopFinder, IterationEndsListener {
+	private static final Logger log = LogManager.getLogger(WalkAccessStopCache.class);
+
+	private static final int MAGIC = 0x44574131;
+	private static final int VERSION = 2;
+
+	/**
+	 * Estimated heap per cached location without the candidates: coord key, map entry, record and array headers.
+	 */
+	private static final int BYTES_PER_LOCATION = 112;
+	private static final int BYTES_PER_CANDIDATE = Integer.BYTES + Float.BYTES;
+
+	/**
+	 * Candidate stops of one location, sorted by distance. Distances are beeline distances in m.
+	 */
+	private record Candidates(int[] stops, float[] distances) {
+		private long bytes() {
+			return BYTES_PER_LOCATION + (long) stops.length * BYTES_PER_CANDIDATE;
+		}
+	}
+
+	private final DefaultRaptorStopFinder delegate;
+	private final SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet walk;
+	private final double beelineDistanceFactor;
+	private final double walkSpeed;
+
+	private final TransitStopFacility[] stops;
+	private final QuadTree<Integer> stopIndex;
+	private final Map<Coord, Candidates> cache = new ConcurrentHashMap<>();
+	private final long maxBytes;
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong uncached = new AtomicLong();
+
+	@Inject
+	WalkAccessStopCache(Scenario scenario, DefaultRaptorStopFinder delegate, Options options) {
+		this.delegate = delegate;
+		this.maxBytes = (long) (options.maxMemory() * 1_000_000);
+
+		SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(scenario.getConfig(), SwissRailRaptorConfigGroup.class);
+		List<SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet> params = srrConfig.getIntermodalAccessEgressParameterSets();
+		this.walk = srrConfig.isUseIntermodalAccessEgress() && params.size() == 1 && TransportMode.walk.equals(params.getFirst().getMode())
+			&& params.getFirst().getStopFilterAttribute() == null && params.getFirst().getPersonFilterAttribute() == null ? params.getFirst() : null;
+
+		RoutingConfigGroup.TeleportedModeParams walkParams = scenario.getConfig().routing().getTeleportedModeParams().get(TransportMode.walk);
+		this.beelineDistanceFactor = walkParams == null ? 1.3 : walkParams.getBeelineDistanceFactor();
+		this.walkSpeed = walkParams == null || walkParams.getTeleportedModeSpeed() == null ? 3 / 3.6 : walkParams.getTeleportedModeSpeed();
+
+//		like the stop index of the raptor data, only stops, which are served by a route, are candidates
+		this.stops = scenario.getTransitSchedule().getTransitLines().values().stream()
+			.flatMap(line -> line.getRoutes().values().stream())
+			.flatMap(route -> route.getStops().stream())
+			.map(TransitRouteStop::getStopFacility)
+			.distinct()
+			.sorted(Comparator.comparing(s -> s.getId().toString()))
+			.toArray(TransitStopFacility[]::new);
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (TransitStopFacility stop : stops) {
+			minX = Math.min(minX, stop.getCoord().getX());
+			minY = Math.min(minY, stop.getCoord().getY());
+			maxX = Math.max(maxX, stop.getCoord().getX());
+			maxY = Math.max(maxY, stop.getCoord().getY());
+		}
+		this.stopIndex = new QuadTree<>(minX, minY, maxX, maxY);
+		for (int i = 0; i < stops.length; i++) {
+			stopIndex.put(stops[i].getCoord().getX(), stops[i].getCoord().getY(), i);
+		}
+
+		if (walk == null) {
+			log.warn("Intermodal access and egress is not walk only, the walk access stop cache is not used.");
+			return;
+		}
+
+		Instant start = Instant.now();
+		if (options.file() != null && Files.exists(options.file())) {
+			read(options.file());
+		}
+		int loaded = cache.size();
+
+		List<Coord> locations = scenario.getActivityFacilities().getFacilities().values().stream().map(ActivityFacility::getCoord).distinct().toList();
+		logEstimate(locations);
+
+		locations.parallelStream().forEach(this::getCandidates);
+
+		log.info("Walk access stops of {} of {} facility locations ({} loaded from file) cached in {} s. Cache size: {} MB of max. {} MB.",
+			cache.size(), locations.size(), loaded, Duration.between(start, Instant.now()).toSeconds(), bytes.get() / 1_000_000, maxBytes / 1_000_000);
+		uncached.set(0);
+
+		if (options.file() != null && cache.size() > loaded) {
+			write(options.file());
+		}
+	}
+
+	/**
+	 * Log the expected cache size, estimated from a sample of the locations.
+	 */
+	private void logEstimate(List<Coord> locations) {
+		int step = Math.max(1, locations.size() / 1000);
+		long sampled = 0;
+		long sampleBytes = 0;
+		for (int i = 0; i < locations.size(); i += step) {
+			sampleBytes += findCandidates(locations.get(i)).bytes();
+			sampled++;
+		}
+		if (sampled == 0) {
+			return;
+		}
+		long estimate = sampleBytes / sampled * locations.size();
+		log.info("Estimated walk access stop cache size for {} locations: {} MB, {} candidates per location on average. Max. size: {} MB.",
+			locations.size(), estimate / 1_000_000, (sampleBytes / sampled - BYTES_PER_LOCATION) / BYTES_PER_CANDIDATE, maxBytes / 1_000_000);
+		if (estimate > maxBytes) {
+			log.warn("Not all locations fit into the walk access stop cache. Increase --walk-access-cache-max-memory or reduce the initial search radius.");
+		}
+	}
+
+	/**
+	 * Candidates of a location from the cache. If missing, they are computed and added, if the cache is not full.
+	 */
+	private Candidates getCandidates(Coord coord) {
+		Candidates candidates = cache.get(coord);
+		if (candidates != null) {
+			return candidates;
+		}
+
+		candidates = findCandidates(coord);
+		if (bytes.get() + candidates.bytes() > maxBytes) {
+			uncached.incrementAndGet();
+			return candidates;
+		}
+		if (cache.putIfAbsent(coord, candidates) == null) {
+			bytes.addAndGet(candidates.bytes());
+		}
+		return candidates;
+	}
+
+	@Override
+	public List<InitialStop> findStops(Facility fromFacility, Facility toFacility, Person person, double departureTime, Attributes routingAttributes,
+									   RaptorParameters parameters, SwissRailRaptorData data, Direction type) {
+		Facility facility = type == Direction.ACCESS ? fromFacility : toFacility;
+		if (walk == null || facility.getCoord() == null) {
+			return delegate.findStops(fromFacility, toFacility, person, departureTime, routingAttributes, parameters, data, type);
+		}
+
+		Candidates candidates = cache.get(facility.getCoord());
+		if (candidates == null) {
+			misses.incrementAndGet();
+			candidates = getCandidates(facility.getCoord());
+		} else {
+			hits.incrementAndGet();
+		}
+
+		double costPerSecond = -parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.walk);
+		List<InitialStop> result = new ArrayList<>(candidates.stops().length);
+		for (int i = 0; i < candidates.stops().length; i++) {
+			TransitStopFacility stop = stops[candidates.stops()[i]];
+			double distance = candidates.distances()[i] * beelineDistanceFactor;
+			double time = distance / walkSpeed;
+
+			Leg leg = type == Direction.ACCESS
+				? createLeg(facility.getLinkId(), stop.getLinkId(), departureTime, time, distance)
+				: createLeg(stop.getLinkId(), facility.getLinkId(), departureTime, time, distance);
+			result.add(new InitialStop(stop, time * costPerSecond, time, distance, TransportMode.walk, List.of(leg)));
+		}
+		return result;
+	}
+
+	private static Leg createLeg(Id<Link> from, Id<Link> to, double departureTime, double time, double distance) {
+		Leg leg = PopulationUtils.createLeg(TransportMode.walk);
+		leg.setDepartureTime(departureTime);
+		leg.setTravelTime(time);
+		Route route = RouteUtils.createGenericRouteImpl(from, to);
+		route.setTravelTime(time);
+		route.setDistance(distance);
+		leg.setRoute(route);
+		return leg;
+	}
+
+	/**
+	 * Stops within the initial search radius. Like in the {@link DefaultRaptorStopFinder}, if there are less than two,
+	 * the radius is extended beyond the nearest stop by the search extension radius, up to the max radius.
+	 */
+	private Candidates findCandidates(Coord coord) {
+		Collection<Integer> found = stopIndex.getDisk(coord.getX(), coord.getY(), walk.getInitialSearchRadius());
+		if (found.size() < 2) {
+			Integer nearest = stopIndex.getClosest(coord.getX(), coord.getY());
+			double distance = nearest == null ? Double.POSITIVE_INFINITY : CoordUtils.calcEuclideanDistance(coord, stops[nearest].getCoord());
+			if (distance <= walk.getMaxRadius()) {
+				found = stopIndex.getDisk(coord.getX(), coord.getY(), Math.min(walk.getMaxRadius(), distance + walk.getSearchExtensionRadius()));
+			}
+		}
+
+		int[] indices = found.stream().mapToInt(Integer::intValue).toArray();
+		double[] d = new double[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			d[i] = CoordUtils.calcEuclideanDistance(coord, stops[indices[i]].getCoord());
+		}
+
+		Integer[] order = new Integer[indices.length];
+		Arrays.setAll(order, i -> i);
+		Arrays.sort(order, Comparator.comparingDouble(i -> d[i]));
+
+		int[] sortedStops = new int[indices.length];
+		float[] sortedDistances = new float[indices.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedStops[i] = indices[order[i]];
+			sortedDistances[i] = (float) d[order[i]];
+		}
+		return new Candidates(sortedStops, sortedDistances);
+	}
+
+	/**
+	 * Candidate stops of a location, nearest first.
+	 */
+	List<TransitStopFacility> getCandidateStops(Coord coord) {
+		return Arrays.stream(getCandidates(coord).stops()).mapToObj(i -> stops[i]).toList();
+	}
+
+	int getCachedLocations() {
+		return cache.size();
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		long h = hits.getAndSet(0);
+		long m = misses.getAndSet(0);
+		long u = uncached.getAndSet(0);
+		log.info("Walk access stop cache in iteration {}: {} hits, {} computed ({} not cached, as the cache is full), hit rate {}. {} locations cached, {} MB.",
+			event.getIteration(), h, m, u, h + m == 0 ? 0 : (double) h / (h + m), cache.size(), bytes.get() / 1_000_000);
+	}
+
+	/**
+	 * The file is only valid for the same stops, at the same coordinates, and search radii.
+	 */
+	private long fingerprint() {
+		long hash = 1;
+		for (TransitStopFacility stop : stops) {
+			hash = 31 * hash + stop.getId().toString().hashCode();
+			hash = 31 * hash + Double.hashCode(stop.getCoord().getX());
+			hash = 31 * hash + Double.hashCode(stop.getCoord().getY());
+		}
+		hash = 31 * hash + Double.hashCode(walk.getInitialSearchRadius());
+		hash = 31 * hash + Double.hashCode(walk.getSearchExtensionRadius());
+		return 31 * hash + Double.hashCode(walk.getMaxRadius());
+	}
+
+	private void write(Path path) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fingerprint());
+			out.writeInt(cache.size());
+			for (Map.Entry<Coord, Candidates> e : cache.entrySet()) {
+				out.writeDouble(e.getKey().getX());
+				out.writeDouble(e.getKey().getY());
+				out.writeInt(e.getValue().stops().length);
+				for (int i = 0; i < e.getValue().stops().length; i++) {
+					out.writeInt(e.getValue().stops()[i]);
+					out.writeFloat(e.getValue().distances()[i]);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Walk access stops of {} locations written to {}", cache.size(), path);
+	}
+
+	private void read(Path path) {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint()) {
+			log.warn("Walk access stop cache {} does not match the transit schedule or search radii, it is recomputed.", path);
+			return;
+		}
+
+		int n = buffer.getInt();
+		for (int i = 0; i < n; i++) {
+			Coord coord = new Coord(buffer.getDouble(), buffer.getDouble());
+			int[] s = new int[buffer.getInt()];
+			float[] d = new float[s.length];
+			for (int j = 0; j < s.length; j++) {
+				s[j] = buffer.getInt();
+				d[j] = buffer.getFloat();
+			}
+			Candidates candidates = new Candidates(s, d);
+			if (bytes.get() + candidates.bytes() > maxBytes) {
+				log.warn("Walk access stop cache {} does not fit into the max. memory, only {} of {} locations are loaded.", path, i, n);
+				return;
+			}
+			cache.put(coord, candidates);
+			bytes.addAndGet(candidates.bytes());
+		}
+	}
+
+	/**
+	 * Optional file, in which the cache is stored, and the max. heap of the cache in MB.
+	 */
+	record Options(Path file, double maxMemory) {
+	}
+}
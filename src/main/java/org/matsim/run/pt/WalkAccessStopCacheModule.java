@@ -0,0 +1,35 @@
+package org.matsim.run.pt;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorStopFinder;
+import com.google.inject.Singleton;
+import org.matsim.core.controler.AbstractModule;
+
+import java.nio.file.Path;
+
+/**
+ * Replaces the stop finder of SwissRailRaptor by the {@link WalkAccessStopCache}. Has to be added as overriding module.
+ */
+public final class WalkAccessStopCacheModule extends AbstractModule {
+
+	private final Path file;
+	private final double maxMemory;
+
+	/**
+	 * Create the module.
+	 *
+	 * @param file      file to load the cache from and to save it to, null to keep it in memory only
+	 * @param maxMemory max. heap of the cache in MB
+	 */
+	public WalkAccessStopCacheModule(Path file, double maxMemory) {
+		this.file = file;
+		this.maxMemory = maxMemory;
+	}
+
+	@Override
+	public void install() {
+		bind(WalkAccessStopCache.Options.class).toInstance(new WalkAccessStopCache.Options(file, maxMemory));
+		bind(WalkAccessStopCache.class).in(Singleton.class);
+		bind(RaptorStopFinder.class).to(WalkAccessStopCache.class);
+		addControlerListenerBinding().to(WalkAccessStopCache.class);
+	}
+}
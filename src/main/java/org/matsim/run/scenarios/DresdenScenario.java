@@ -4,12 +4,19 @@ import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 import com.google.common.collect.Sets;
 import com.google.inject.multibindings.Multibinder;
 import jakarta.annotation.Nullable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.matsim.analysis.CheckAndSummarizeLongDistanceFreightPopulation;
 import org.matsim.analysis.CheckStayHomeAgents;
+import org.matsim.analysis.RunPopulationChecks;
+import org.matsim.analysis.TiledNoiseAnalysis;
+import org.matsim.analysis.TiledNoiseAnalysisListener;
+import org.matsim.analysis.emissions.OnlineEmissionsModule;
 import org.matsim.analysis.personMoney.PersonMoneyEventsAnalysisModule;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
 import org.matsim.application.MATSimApplication;
 import org.matsim.application.analysis.CheckPopulation;
 import org.matsim.application.analysis.traffic.LinkStats;
@@ -42,15 +49,25 @@ import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule;
 import org.matsim.core.scoring.functions.ScoringParametersForPerson;
 import org.matsim.dashboards.DresdenDashboardProvider;
 import org.matsim.prepare.*;
+import org.matsim.run.pt.PtFareCacheModule;
+import org.matsim.run.pt.WalkAccessStopCacheModule;
 import org.matsim.simwrapper.DashboardProvider;
 import org.matsim.simwrapper.SimWrapperConfigGroup;
 import org.matsim.simwrapper.SimWrapperModule;
 import org.matsim.smallScaleCommercialTrafficGeneration.GenerateSmallScaleCommercialTrafficDemand;
 import org.matsim.smallScaleCommercialTrafficGeneration.prepare.CreateDataDistributionOfStructureData;
 import org.matsim.utils.DresdenUtils;
+import org.matsim.utils.HbefaTableCache;
+import org.matsim.utils.ParallelScenarioLoader;
+import org.matsim.utils.RemoteInputCache;
+import org.matsim.utils.ScenarioSnapshot;
 import picocli.CommandLine;
 import playground.vsp.scoring.IncomeDependentUtilityOfMoneyPersonScoringParameters;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -63,12 +80,15 @@ import static org.matsim.utils.DresdenUtils.*;
 		CreateLandUseShp.class, ResolveGridCoordinates.class, FixSubtourModes.class, AdjustActivityToLinkDistances.class, XYToLinks.class,
 		CleanNetwork.class, PrepareNetwork.class, SplitActivityTypesDuration.class, CreateCountsFromBAStData.class,
 		CutOutDresdenPopulation.class, CreateDataDistributionOfStructureData.class, GenerateSmallScaleCommercialTrafficDemand.class,
-		PreparePopulation.class, CreateFacilitiesFromPopulation.class, CreateSingleTransportModePopulation.class, RemoveVehicleInformationFromPopulation.class
+		PreparePopulation.class, CreateFacilitiesFromPopulation.class, CreateSingleTransportModePopulation.class, RemoveVehicleInformationFromPopulation.class,
+		PreparePopulationPipeline.class, CachedPrepareStep.class, CreateScenarioSnapshot.class, MergeShards.class, CreateHbefaCache.class
 })
 @MATSimApplication.Analysis({
-		LinkStats.class, CheckPopulation.class, CheckAndSummarizeLongDistanceFreightPopulation.class, CheckStayHomeAgents.class
+		LinkStats.class, CheckPopulation.class, CheckAndSummarizeLongDistanceFreightPopulation.class, CheckStayHomeAgents.class,
+		RunPopulationChecks.class, TiledNoiseAnalysis.class
 })
 public class DresdenScenario extends MATSimApplication {
+	private static final Logger log = LogManager.getLogger(DresdenScenario.class);
 
 	public static final String VERSION = "v1.0";
 
@@ -76,9 +96,41 @@ public class DresdenScenario extends MATSimApplication {
 	private final SampleOptions sample = new SampleOptions(100, 25, 10, 1);
 	@CommandLine.Option(names = "--emissions", defaultValue = "ENABLED", description = "Define if emission analysis should be performed or not.")
 	DresdenUtils.FunctionalityHandling emissions;
+	@CommandLine.Option(names = "--emissions-online", defaultValue = "DISABLED", description = "Define if emissions should be computed during the simulation instead of by the emissions dashboard, which re-reads the events. Requires --emissions.")
+	private DresdenUtils.FunctionalityHandling emissionsOnline;
+	@CommandLine.Option(names = "--emissions-interval", defaultValue = "0", description = "Compute emissions online in every n-th iteration. Emissions are always computed in the last iteration, if --emissions-online is enabled.")
+	private int emissionsInterval;
+	@CommandLine.Option(names = "--emissions-warm-resolver", defaultValue = "DISABLED", description = "Compute only warm emissions online, with memoised factors from --hbefa-cache instead of the emissions contrib. Results are written to emissions_warm_only_per_link*.csv. Requires --emissions-online.")
+	private DresdenUtils.FunctionalityHandling emissionsWarmResolver;
+	@CommandLine.Option(names = "--pt-fare-cache", defaultValue = "ENABLED", description = "Define if pt fares should be cached per pair of access and egress stop.")
+	private DresdenUtils.FunctionalityHandling ptFareCache;
+	@CommandLine.Option(names = "--noise", defaultValue = "DISABLED", description = "Define if a tiled noise analysis with bounded memory should be performed after the run.")
+	DresdenUtils.FunctionalityHandling noise;
 	@CommandLine.Option(names = "--explicit-walk-intermodality", defaultValue = "ENABLED", description = "Define if explicit walk intermodality parameter to/from pt should be set or not (use default).")
 	static DresdenUtils.FunctionalityHandling explicitWalkIntermodality;
+	@CommandLine.Option(names = "--walk-access-cache", defaultValue = "DISABLED", description = "Define if the walk access and egress stops to pt should be precomputed per location. Requires --explicit-walk-intermodality.")
+	private DresdenUtils.FunctionalityHandling walkAccessCache;
+	@CommandLine.Option(names = "--walk-access-cache-file", description = "File to load the walk access stops from, and to save them to. Only used with --walk-access-cache.")
+	private Path walkAccessCacheFile;
+	@CommandLine.Option(names = "--walk-access-cache-max-memory", defaultValue = "2000", description = "Max. heap of the walk access stop cache in MB. Locations beyond are not cached.")
+	private double walkAccessCacheMaxMemory;
+	@CommandLine.Option(names = "--input-cache", defaultValue = "${env:MATSIM_INPUT_CACHE}",
+		description = "Directory in which remote input files are cached. Can be shared between runs and nodes. Defaults to env variable MATSIM_INPUT_CACHE. If not set, inputs are read remotely.")
+	private Path inputCache;
+	@CommandLine.Option(names = "--hbefa-cache", defaultValue = "${env:MATSIM_HBEFA_CACHE}",
+		description = "Directory with the decrypted HBEFA tables, see prepare hbefa-cache. Defaults to env variable MATSIM_HBEFA_CACHE. If not set or incomplete, the remote tables are used.")
+	private Path hbefaCache;
+	@CommandLine.Option(names = "--parallel-loading", defaultValue = "DISABLED", description = "Define if plans and facilities should be parsed concurrently to the other input files.")
+	private DresdenUtils.FunctionalityHandling parallelLoading;
+	@CommandLine.Option(names = "--offline", defaultValue = "false", description = "Only use inputs from --input-cache, never download.")
+	private boolean offline;
+	@CommandLine.Option(names = "--snapshot", description = "Binary snapshot of the prepared network and facilities, see prepare snapshot. Used instead of the network and facilities files of the config, if it exists.")
+	private Path snapshot;
 
+	/**
+	 * Whether the network of the snapshot contains the hbefa attributes, null if no snapshot has been loaded.
+	 */
+	private Boolean snapshotEmissionAttributes;
 
 	public DresdenScenario(@Nullable Config config) {
 		super(config);
@@ -153,7 +205,94 @@ public class DresdenScenario extends MATSimApplication {
 		annealingVar.setDefaultSubpopulation("person");
 		config.replanningAnnealer().addAnnealingVariable(annealingVar);
 
-		//		set pt fare calc model to fareZoneBased = fare of vvo tarifzonen are paid for trips within fare zones
+		setPtFareParams(config);
+
+		if (explicitWalkIntermodality == DresdenUtils.FunctionalityHandling.ENABLED) {
+			setExplicitIntermodalityParamsForWalkToPt(ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class));
+		}
+
+		if (emissions == DresdenUtils.FunctionalityHandling.ENABLED) {
+//		set hbefa input files for emission analysis
+			setEmissionsConfigs(config);
+			HbefaTableCache.applyIfPresent(config, hbefaCache);
+		}
+
+		if (inputCache != null) {
+			new RemoteInputCache(inputCache, offline).resolveConfigInputs(config);
+		} else if (offline) {
+			throw new IllegalArgumentException("--offline requires --input-cache to be set.");
+		}
+		return config;
+	}
+
+	@Override
+	protected Scenario createScenario(Config config) {
+		if (snapshot == null || !Files.exists(snapshot) || !isSnapshotValid(config)) {
+			return loadScenario(config);
+		}
+
+//		network and facilities are read from the snapshot. The config is restored afterward, so that the output config is complete.
+		String networkFile = config.network().getInputFile();
+		String facilitiesFile = config.facilities().getInputFile();
+		config.network().setInputFile(null);
+		config.facilities().setInputFile(null);
+		try {
+			Scenario scenario = loadScenario(config);
+			snapshotEmissionAttributes = ScenarioSnapshot.read(snapshot, scenario);
+			return scenario;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			config.network().setInputFile(networkFile);
+			config.facilities().setInputFile(facilitiesFile);
+		}
+	}
+
+	/**
+	 * Whether the snapshot has been created from the network and facilities files of the config, in the same CRS.
+	 */
+	private boolean isSnapshotValid(Config config) {
+		try {
+			ScenarioSnapshot.Source expected = ScenarioSnapshot.Source.of(config.network().getInputFileURL(config.getContext()),
+				config.facilities().getInputFileURL(config.getContext()), config.global().getCoordinateSystem());
+			ScenarioSnapshot.Source actual = ScenarioSnapshot.readSource(snapshot);
+			if (actual == null || !actual.matches(expected)) {
+				log.warn("Snapshot {} does not match the input files of the config and is not used. Snapshot: {}, config: {}", snapshot, actual, expected);
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Scenario loadScenario(Config config) {
+		if (parallelLoading == FunctionalityHandling.ENABLED) {
+			return ParallelScenarioLoader.loadScenario(config);
+		}
+		return super.createScenario(config);
+	}
+
+	@Override
+	protected void prepareScenario(Scenario scenario) {
+		if (snapshotEmissionAttributes == null) {
+			prepareNetwork(scenario.getNetwork(), emissions);
+		} else if (emissions == FunctionalityHandling.ENABLED && !snapshotEmissionAttributes) {
+//			the snapshot network is prepared already, only the hbefa attributes are missing
+			PrepareNetwork.prepareEmissionsAttributes(scenario.getNetwork());
+		}
+
+		if (emissions == FunctionalityHandling.ENABLED) {
+//			prepare vehicle types for emission analysis
+			prepareVehicleTypesForEmissionAnalysis(scenario);
+		}
+	}
+
+	/**
+	 * Set the pt fares of the Dresden scenario: fare zone based within VVO Tarifzone 10, distance based (Deutschlandtarif) for every other trip.
+	 */
+	public static void setPtFareParams(Config config) {
+//		set pt fare calc model to fareZoneBased = fare of vvo tarifzonen are paid for trips within fare zones
 //		every other trip: Deutschlandtarif
 //		for more info see PTFareModule / ChainedPtFareCalculator classes in vsp contrib
 		PtFareConfigGroup ptFareConfigGroup = ConfigUtils.addOrGetModule(config, PtFareConfigGroup.class);
@@ -192,26 +331,29 @@ public class DresdenScenario extends MATSimApplication {
 
 		ptFareConfigGroup.addParameterSet(vvo10);
 		ptFareConfigGroup.addParameterSet(germany);
+	}
 
-		if (explicitWalkIntermodality == DresdenUtils.FunctionalityHandling.ENABLED) {
-			setExplicitIntermodalityParamsForWalkToPt(ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class));
-		}
-
-		if (emissions == DresdenUtils.FunctionalityHandling.ENABLED) {
-//		set hbefa input files for emission analysis
-			setEmissionsConfigs(config);
+	/**
+	 * Which emissions dashboard matches the emissions options.
+	 */
+	private DresdenDashboardProvider.Emissions getEmissionsDashboard() {
+		if (emissions != FunctionalityHandling.ENABLED || emissionsOnline != FunctionalityHandling.ENABLED) {
+			return DresdenDashboardProvider.Emissions.EVENTS;
 		}
-		return config;
+		return emissionsWarmResolver == FunctionalityHandling.ENABLED ?
+			DresdenDashboardProvider.Emissions.ONLINE_WARM_ONLY : DresdenDashboardProvider.Emissions.ONLINE;
 	}
 
-	@Override
-	protected void prepareScenario(Scenario scenario) {
+	/**
+	 * Prepare the network for the simulation. This is also applied before writing a scenario snapshot.
+	 */
+	public static void prepareNetwork(Network network, FunctionalityHandling emissions) {
 		//		add freight modes of DresdenUtils to network.
 //		this happens in the makefile pipeline already, but we do it here anyways, in case somebody uses a preliminary network.
-		PrepareNetwork.prepareFreightNetwork(scenario.getNetwork());
+		PrepareNetwork.prepareFreightNetwork(network);
 
 //		remove disallowed links. The disallowed links cause many problems and (usually) are not useful in our rather macroscopic view on transport systems.
-		for (Link link : scenario.getNetwork().getLinks().values()) {
+		for (Link link : network.getLinks().values()) {
 			DisallowedNextLinks disallowed = NetworkUtils.getDisallowedNextLinks(link);
 			if (disallowed != null) {
 				link.getAllowedModes().forEach(disallowed::removeDisallowedLinkSequences);
@@ -224,9 +366,7 @@ public class DresdenScenario extends MATSimApplication {
 		if (emissions == FunctionalityHandling.ENABLED) {
 //			prepare hbefa link attributes + make link.getType() handable for OsmHbefaMapping
 //			this also happens in makefile pipeline. integrating it here for same reason as above.
-			PrepareNetwork.prepareEmissionsAttributes(scenario.getNetwork());
-//			prepare vehicle types for emission analysis
-			prepareVehicleTypesForEmissionAnalysis(scenario);
+			PrepareNetwork.prepareEmissionsAttributes(network);
 		}
 	}
 
@@ -237,6 +377,21 @@ public class DresdenScenario extends MATSimApplication {
 
 		controler.addOverridingModule(new SimWrapperModule());
 
+		if (emissions == FunctionalityHandling.ENABLED && emissionsOnline == FunctionalityHandling.ENABLED) {
+//			compute emissions during the simulation and write aggregated tables per link and hour
+			Path warmFactors = null;
+			if (emissionsWarmResolver == FunctionalityHandling.ENABLED) {
+				if (!HbefaTableCache.isComplete(hbefaCache)) {
+					throw new IllegalArgumentException("--emissions-warm-resolver requires a complete HBEFA cache, see prepare hbefa-cache.");
+				}
+				log.warn("--emissions-warm-resolver computes warm emissions only. Cold emissions are NOT included in {}.", OnlineEmissionsModule.WARM_PER_LINK);
+				warmFactors = hbefaCache;
+			}
+			controler.addOverridingModule(new OnlineEmissionsModule(emissionsInterval, warmFactors));
+		} else if (emissionsWarmResolver == FunctionalityHandling.ENABLED) {
+			throw new IllegalArgumentException("--emissions-warm-resolver requires --emissions and --emissions-online.");
+		}
+
 		controler.addOverridingModule(new AbstractModule() {
 			@Override
 			public void install() {
@@ -247,9 +402,26 @@ public class DresdenScenario extends MATSimApplication {
 				addTravelDisutilityFactoryBinding(TransportMode.ride).to(carTravelDisutilityFactoryKey());
 //				this binds the DresdenDashboardProvider with guice instead of resources/services/.../file.
 //				This is way more convenient imho.
-				Multibinder.newSetBinder(binder(), DashboardProvider.class).addBinding().to(DresdenDashboardProvider.class);
+				Multibinder.newSetBinder(binder(), DashboardProvider.class).addBinding()
+					.toInstance(new DresdenDashboardProvider(getEmissionsDashboard()));
+
+				if (noise == FunctionalityHandling.ENABLED) {
+					addControlerListenerBinding().to(TiledNoiseAnalysisListener.class);
+				}
 			}
 		});
+
+		if (ptFareCache == FunctionalityHandling.ENABLED) {
+//			has to be added after the module above, which installs the PtFareModule
+			controler.addOverridingModule(new PtFareCacheModule());
+		}
+
+		if (walkAccessCache == FunctionalityHandling.ENABLED) {
+			if (explicitWalkIntermodality != FunctionalityHandling.ENABLED) {
+				throw new IllegalArgumentException("--walk-access-cache requires --explicit-walk-intermodality.");
+			}
+			controler.addOverridingModule(new WalkAccessStopCacheModule(walkAccessCacheFile, walkAccessCacheMaxMemory));
+		}
 	}
 
 	/**
@@ -0,0 +1,340 @@
+package org.matsim.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.population.io.PopulationWriter;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Population reading and writing, where gzip is not done on the thread, which parses or serializes the xml.
+ * Inflating is done on a read-ahead thread. Deflating is done in parallel on independent blocks, which are written as consecutive gzip members (like pigz).
+ * The output is a valid gzip file, which can be read by any gzip implementation.
+ * Only local files ending with .gz are handled, all other paths are passed to the standard MATSim readers and writers.
+ */
+public final class GzipPopulationIO {
+	private static final Logger log = LogManager.getLogger(GzipPopulationIO.class);
+
+	private static final int READ_CHUNK_SIZE = 4 << 20;
+	private static final int READ_AHEAD_CHUNKS = 4;
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	private GzipPopulationIO() {
+
+	}
+
+	/**
+	 * Read a whole population.
+	 */
+	public static Population readPopulation(String path) {
+		if (!isLocalGzip(path)) {
+			return PopulationUtils.readPopulation(path);
+		}
+
+		Instant start = Instant.now();
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		try (InputStream in = openInput(Path.of(path))) {
+			new PopulationReader(scenario).parse(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		log.info("Read {} persons from {} in {} s.", scenario.getPopulation().getPersons().size(), path, Duration.between(start, Instant.now()).toSeconds());
+		return scenario.getPopulation();
+	}
+
+	/**
+	 * Read a population person by person with the given reader.
+	 */
+	public static void readPopulation(StreamingPopulationReader reader, String path) {
+		if (!isLocalGzip(path)) {
+			reader.readFile(path);
+			return;
+		}
+
+		try (InputStream in = openInput(Path.of(path))) {
+			reader.parse(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write a whole population.
+	 */
+	public static void writePopulation(Population population, String path) {
+		if (!path.endsWith(".gz")) {
+			PopulationUtils.writePopulation(population, path);
+			return;
+		}
+
+		Instant start = Instant.now();
+		try (OutputStream out = openOutput(Path.of(path))) {
+			new PopulationWriter(population).writeStream(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		log.info("Wrote {} persons to {} in {} s.", population.getPersons().size(), path, Duration.between(start, Instant.now()).toSeconds());
+	}
+
+	/**
+	 * Open a gzip file. The returned stream contains the inflated content, which is read ahead on a separate thread.
+	 */
+	public static InputStream openInput(Path path) throws IOException {
+		return new ReadAheadInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16), 1 << 16));
+	}
+
+	/**
+	 * Open a gzip file for writing. Written content is compressed in parallel using all available processors.
+	 */
+	public static OutputStream openOutput(Path path) throws IOException {
+		return new ParallelGzipOutputStream(Files.newOutputStream(path), Runtime.getRuntime().availableProcessors());
+	}
+
+	private static boolean isLocalGzip(String path) {
+		try {
+			return path.endsWith(".gz") && Files.isRegularFile(Path.of(path));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the source stream on a separate thread into large chunks, which are handed over by a bounded queue.
+	 */
+	private static final class ReadAheadInputStream extends InputStream {
+		private static final byte[] EOF = new byte[0];
+
+		private final InputStream source;
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(READ_AHEAD_CHUNKS);
+		private final Thread thread;
+		private volatile IOException error;
+
+		private byte[] current = new byte[0];
+		private int pos;
+		private boolean eof;
+
+		private ReadAheadInputStream(InputStream source) {
+			this.source = source;
+			this.thread = new Thread(this::readAhead, "gzip-read-ahead");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		private void readAhead() {
+			try {
+				while (true) {
+					byte[] chunk = source.readNBytes(READ_CHUNK_SIZE);
+					if (chunk.length == 0) {
+						break;
+					}
+					chunks.put(chunk);
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			try {
+				chunks.put(EOF);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Make sure there are bytes left in the current chunk. Returns false at the end of the stream.
+		 */
+		private boolean fill() throws IOException {
+			while (pos >= current.length) {
+				if (eof) {
+					return false;
+				}
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for read-ahead.");
+				}
+				pos = 0;
+				if (current == EOF) {
+					eof = true;
+					if (error != null) {
+						throw error;
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return current[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, current.length - pos);
+			ByteBuffer.wrap(b, off, n).put(current, pos, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return current.length - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			thread.interrupt();
+			source.close();
+		}
+	}
+
+	/**
+	 * Splits the written content into blocks, which are compressed in parallel into independent gzip members and written in order.
+	 * At most two blocks per thread are pending, so that memory usage stays bounded.
+	 */
+	private static final class ParallelGzipOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final ExecutorService executor;
+		private final int maxPending;
+		private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+		private byte[] block = new byte[BLOCK_SIZE];
+		private int size;
+		private boolean closed;
+
+		private ParallelGzipOutputStream(OutputStream out, int threads) {
+			this.out = out;
+			this.executor = Executors.newFixedThreadPool(threads, r -> {
+				Thread thread = new Thread(r, "gzip-deflate");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.maxPending = 2 * threads;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			block[size++] = (byte) b;
+			if (size == BLOCK_SIZE) {
+				submitBlock();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, BLOCK_SIZE - size);
+				ByteBuffer.wrap(block, size, n).put(b, off, n);
+				size += n;
+				off += n;
+				len -= n;
+				if (size == BLOCK_SIZE) {
+					submitBlock();
+				}
+			}
+		}
+
+		private void submitBlock() throws IOException {
+			byte[] data = size == BLOCK_SIZE ? block : Arrays.copyOf(block, size);
+			pending.add(executor.submit(() -> deflate(data)));
+			block = new byte[BLOCK_SIZE];
+			size = 0;
+
+			while (pending.size() > maxPending) {
+				writeNext();
+			}
+		}
+
+		private static byte[] deflate(byte[] data) throws IOException {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(buffer, 1 << 16)) {
+				gzip.write(data);
+			}
+			return buffer.toByteArray();
+		}
+
+		private void writeNext() throws IOException {
+			try {
+				out.write(pending.removeFirst().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing.");
+			} catch (ExecutionException e) {
+				throw new IOException("Could not compress block.", e.getCause());
+			}
+		}
+
+		/**
+		 * Flushing compresses the current block, even if it is not full yet.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (size > 0) {
+				submitBlock();
+			}
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				flush();
+			} finally {
+				executor.shutdownNow();
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.matsim.utils;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local cache of the decrypted HBEFA tables. Every table is stored twice:
+ * as gzipped csv file, which is read by the emissions contrib without download and decryption,
+ * and as binary table, in which text columns are dictionary encoded and rows are sorted by their key, for fast lookups on the Dresden side.
+ * The cache directory is only readable by its owner, because the HBEFA tables must not be shared.
+ */
+public final class HbefaTableCache {
+	private static final Logger log = LogManager.getLogger(HbefaTableCache.class);
+
+	private static final int MAGIC = 0x44484231;
+	private static final int VERSION = 1;
+	private static final char DELIMITER = ';';
+
+	/**
+	 * HBEFA tables used by the scenario.
+	 */
+	public enum Table {
+		COLD_DETAILED(DresdenUtils.HBEFA_FILE_COLD_DETAILED, "cold_detailed"),
+		WARM_DETAILED(DresdenUtils.HBEFA_FILE_WARM_DETAILED, "warm_detailed"),
+		COLD_AVERAGE(DresdenUtils.HBEFA_FILE_COLD_AVERAGE, "cold_average"),
+		WARM_AVERAGE(DresdenUtils.HBEFA_FILE_WARM_AVERAGE, "warm_average");
+
+		private final String url;
+		private final String fileName;
+
+		Table(String url, String fileName) {
+			this.url = url;
+			this.fileName = fileName;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public Path getCsvFile(Path dir) {
+			return dir.resolve(fileName + ".csv.gz");
+		}
+
+		public Path getBinaryFile(Path dir) {
+			return dir.resolve(fileName + ".bin");
+		}
+	}
+
+	private HbefaTableCache() {
+
+	}
+
+	/**
+	 * Whether all tables are present in the directory.
+	 */
+	public static boolean isComplete(Path dir) {
+		return dir != null && Arrays.stream(Table.values()).allMatch(t -> Files.isRegularFile(t.getCsvFile(dir)) && Files.isRegularFile(t.getBinaryFile(dir)));
+	}
+
+	/**
+	 * Use the cached tables in the emissions config, if the cache is complete.
+	 *
+	 * @param dir cache directory, may be null
+	 * @return whether the cache is used
+	 */
+	public static boolean applyIfPresent(Config config, Path dir) {
+		if (!isComplete(dir)) {
+			return false;
+		}
+
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
+		eConfig.setDetailedColdEmissionFactorsFile(Table.COLD_DETAILED.getCsvFile(dir).toUri().toString());
+		eConfig.setDetailedWarmEmissionFactorsFile(Table.WARM_DETAILED.getCsvFile(dir).toUri().toString());
+		eConfig.setAverageColdEmissionFactorsFile(Table.COLD_AVERAGE.getCsvFile(dir).toUri().toString());
+		eConfig.setAverageWarmEmissionFactorsFile(Table.WARM_AVERAGE.getCsvFile(dir).toUri().toString());
+		log.info("Using cached HBEFA tables from {}", dir);
+		return true;
+	}
+
+	/**
+	 * Decrypt the table from the source (a url or an encrypted local copy) and store it in the cache directory.
+	 * Decryption uses the MATSIM_DECRYPTION_PASSWORD environment variable.
+	 */
+	public static void create(Path dir, Table table, String source) throws IOException {
+		Instant start = Instant.now();
+		createProtectedDirectory(dir);
+
+		Path csv = table.getCsvFile(dir);
+		Path tmp = Files.createTempFile(dir, table.fileName, ".part");
+		try {
+			try (InputStream in = IOUtils.getInputStream(IOUtils.resolveFileOrResource(source));
+				 OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20), 1 << 16)) {
+				in.transferTo(out);
+			}
+			Files.move(tmp, csv, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			tmp = Files.createTempFile(dir, table.fileName, ".part");
+			int rows = writeBinary(csv, tmp);
+			Files.move(tmp, table.getBinaryFile(dir), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			log.info("Cached HBEFA table {} with {} rows in {} s ({} MB csv, {} MB binary).", table, rows, Duration.between(start, Instant.now()).toSeconds(),
+				Files.size(csv) / 1_000_000, Files.size(table.getBinaryFile(dir)) / 1_000_000);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void createProtectedDirectory(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+		}
+	}
+
+	private static CSVParser parse(Path csv) throws IOException {
+		Reader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(csv), 1 << 16), StandardCharsets.UTF_8), 1 << 16);
+		return CSVFormat.DEFAULT.builder().setDelimiter(DELIMITER).setHeader().setSkipHeaderRecord(true).setTrim(true).build().parse(reader);
+	}
+
+	/**
+	 * Convert the csv table into the binary table. Columns, of which all values are numeric, are value columns. All other columns form the key.
+	 */
+	private static int writeBinary(Path csv, Path output) throws IOException {
+		List<String> columns;
+		boolean[] numeric;
+
+//		first pass: column types
+		try (CSVParser parser = parse(csv)) {
+			columns = parser.getHeaderNames();
+			numeric = new boolean[columns.size()];
+			Arrays.fill(numeric, true);
+
+			for (CSVRecord record : parser) {
+				for (int i = 0; i < columns.size(); i++) {
+					String value = record.get(i);
+					if (numeric[i] && !value.isEmpty() && !isNumber(value)) {
+						numeric[i] = false;
+					}
+				}
+			}
+		}
+
+		List<Integer> keyColumns = new ArrayList<>();
+		List<Integer> valueColumns = new ArrayList<>();
+		for (int i = 0; i < columns.size(); i++) {
+			(numeric[i] ? valueColumns : keyColumns).add(i);
+		}
+
+//		second pass: dictionaries of the key columns
+		List<TreeSet<String>> dictionaries = new ArrayList<>();
+		keyColumns.forEach(c -> dictionaries.add(new TreeSet<>()));
+		try (CSVParser parser = parse(csv)) {
+			for (CSVRecord record : parser) {
+				for (int i = 0; i < keyColumns.size(); i++) {
+					dictionaries.get(i).add(record.get(keyColumns.get(i)));
+				}
+			}
+		}
+
+//		dictionary codes are assigned in lexicographic order, so that sorting by codes is sorting by text
+		List<Map<String, Integer>> codes = new ArrayList<>();
+		for (TreeSet<String> dictionary : dictionaries) {
+			Map<String, Integer> code = new HashMap<>();
+			dictionary.forEach(v -> code.put(v, code.size()));
+			codes.add(code);
+		}
+
+//		third pass: encode rows
+		int nKeys = keyColumns.size();
+		int nValues = valueColumns.size();
+		int[] keys = new int[1 << 16];
+		double[] data = new double[1 << 16];
+		int rows = 0;
+		try (CSVParser parser = parse(csv)) {
+			for (CSVRecord record : parser) {
+				if ((rows + 1) * nKeys > keys.length) {
+					keys = Arrays.copyOf(keys, keys.length * 2);
+				}
+				if ((rows + 1) * nValues > data.length) {
+					data = Arrays.copyOf(data, data.length * 2);
+				}
+				for (int i = 0; i < nKeys; i++) {
+					keys[rows * nKeys + i] = codes.get(i).get(record.get(keyColumns.get(i)));
+				}
+				for (int i = 0; i < nValues; i++) {
+					String value = record.get(valueColumns.get(i));
+					data[rows * nValues + i] = value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+				}
+				rows++;
+			}
+		}
+
+		int[] sortedKeys = keys;
+		Integer[] order = new Integer[rows];
+		Arrays.setAll(order, i -> i);
+		Comparator<Integer> byKey = (a, b) -> Arrays.compare(sortedKeys, a * nKeys, (a + 1) * nKeys, sortedKeys, b * nKeys, (b + 1) * nKeys);
+		Arrays.parallelSort(order, byKey);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(rows);
+
+			out.writeInt(nKeys);
+			for (int i = 0; i < nKeys; i++) {
+				writeString(out, columns.get(keyColumns.get(i)));
+				TreeSet<String> dictionary = dictionaries.get(i);
+				out.writeInt(dictionary.size());
+				for (String s : dictionary) {
+					writeString(out, s);
+				}
+			}
+			out.writeInt(nValues);
+			for (int column : valueColumns) {
+				writeString(out, columns.get(column));
+			}
+
+			for (int row : order) {
+				for (int i = 0; i < nKeys; i++) {
+					out.writeInt(keys[row * nKeys + i]);
+				}
+				for (int i = 0; i < nValues; i++) {
+					out.writeDouble(data[row * nValues + i]);
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static boolean isNumber(String value) {
+		try {
+			Double.parseDouble(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a cached table with a memory-mapped buffer.
+	 */
+	public static KeyedTable read(Path dir, Table table) throws IOException {
+		Path path = table.getBinaryFile(dir);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("HBEFA table is too large to be mapped: " + path);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IllegalArgumentException("Not a cached HBEFA table of version " + VERSION + ": " + path);
+		}
+		int rows = buffer.getInt();
+
+		String[] keyColumns = new String[buffer.getInt()];
+		String[][] dictionaries = new String[keyColumns.length][];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyColumns[i] = readString(buffer);
+			dictionaries[i] = new String[buffer.getInt()];
+			for (int j = 0; j < dictionaries[i].length; j++) {
+				dictionaries[i][j] = readString(buffer);
+			}
+		}
+		String[] valueColumns = new String[buffer.getInt()];
+		for (int i = 0; i < valueColumns.length; i++) {
+			valueColumns[i] = readString(buffer);
+		}
+
+		int[] keys = new int[rows * keyColumns.length];
+		double[] values = new double[rows * valueColumns.length];
+		for (int row = 0; row < rows; row++) {
+			for (int i = 0; i < keyColumns.length; i++) {
+				keys[row * keyColumns.length + i] = buffer.getInt();
+			}
+			for (int i = 0; i < valueColumns.length; i++) {
+				values[row * valueColumns.length + i] = buffer.getDouble();
+			}
+		}
+
+		return new KeyedTable(keyColumns, dictionaries, valueColumns, rows, keys, values);
+	}
+
+	/**
+	 * HBEFA table with dictionary encoded key columns. Rows are sorted by their key codes.
+	 */
+	public record KeyedTable(String[] keyColumns, String[][] dictionaries, String[] valueColumns, int rows, int[] keys, double[] values) {
+
+		/**
+		 * Index of a key column, -1 if not present.
+		 */
+		public int keyColumn(String name) {
+			return Arrays.asList(keyColumns).indexOf(name);
+		}
+
+		/**
+		 * Index of a value column, -1 if not present.
+		 */
+		public int valueColumn(String name) {
+			return Arrays.asList(valueColumns).indexOf(name);
+		}
+
+		/**
+		 * Code of a text in a key column, -1 if the text does not occur.
+		 */
+		public int code(int keyColumn, String value) {
+			int code = Arrays.binarySearch(dictionaries[keyColumn], value);
+			return code < 0 ? -1 : code;
+		}
+
+		public int key(int row, int keyColumn) {
+			return keys[row * keyColumns.length + keyColumn];
+		}
+
+		public double value(int row, int valueColumn) {
+			return values[row * valueColumns.length + valueColumn];
+		}
+	}
+}
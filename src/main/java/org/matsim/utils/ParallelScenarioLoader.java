@@ -0,0 +1,169 @@
+package org.matsim.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.FacilitiesConfigGroup;
+import org.matsim.core.scenario.MutableScenario;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.vehicles.Vehicles;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Loads the scenario with its independent input files being parsed concurrently: network, transit schedule with transit vehicles, vehicles, plans and facilities.
+ * Every input is loaded into a separate scenario by the standard {@link ScenarioUtils#loadScenario(Config)} and moved to the main scenario afterwards.
+ * Thus, all post-processing of the standard scenario loader still applies. The time spent on every input is logged.
+ */
+public final class ParallelScenarioLoader {
+	private static final Logger log = LogManager.getLogger(ParallelScenarioLoader.class);
+	private static final String REMOVE_ATTRIBUTES = "removingUnnecessaryPlanAttributes";
+	private static final int THREADS = 4;
+
+	private ParallelScenarioLoader() {
+
+	}
+
+	/**
+	 * Load the scenario defined by the config. Network, transit, vehicles, plans and facilities are loaded as separate tasks on a small pool.
+	 */
+	public static Scenario loadScenario(Config config) {
+		String plansFile = config.plans().getInputFile();
+		String facilitiesFile = config.facilities().getInputFile();
+		boolean facilitiesFromFile = config.facilities().getFacilitiesSource() == FacilitiesConfigGroup.FacilitiesSource.fromFile && facilitiesFile != null;
+		String networkFile = config.network().getInputFile();
+		String vehiclesFile = config.vehicles().getVehiclesFile();
+		String scheduleFile = config.transit().getTransitScheduleFile();
+		String transitVehiclesFile = config.transit().getVehiclesFile();
+		boolean transit = config.transit().isUseTransit() && scheduleFile != null;
+
+		Config plansConfig = createPartialConfig(config);
+		plansConfig.plans().setInputFile(plansFile);
+		plansConfig.plans().setInputCRS(config.plans().getInputCRS());
+		plansConfig.plans().addParam(REMOVE_ATTRIBUTES, config.plans().getValue(REMOVE_ATTRIBUTES));
+
+		Config facilitiesConfig = createPartialConfig(config);
+		facilitiesConfig.facilities().setFacilitiesSource(FacilitiesConfigGroup.FacilitiesSource.fromFile);
+		facilitiesConfig.facilities().setInputFile(facilitiesFile);
+		facilitiesConfig.facilities().setInputCRS(config.facilities().getInputCRS());
+
+		String changeEventsFile = config.network().getChangeEventsInputFile();
+		Config networkConfig = createPartialConfig(config);
+		networkConfig.network().setInputFile(networkFile);
+		networkConfig.network().setInputCRS(config.network().getInputCRS());
+		networkConfig.network().setTimeVariantNetwork(config.network().isTimeVariantNetwork());
+		networkConfig.network().setChangeEventsInputFile(changeEventsFile);
+
+		Config vehiclesConfig = createPartialConfig(config);
+		vehiclesConfig.vehicles().setVehiclesFile(vehiclesFile);
+
+		Config transitConfig = createPartialConfig(config);
+		transitConfig.transit().setUseTransit(true);
+		transitConfig.transit().setTransitScheduleFile(scheduleFile);
+		transitConfig.transit().setVehiclesFile(transitVehiclesFile);
+		transitConfig.transit().setInputScheduleCRS(config.transit().getInputScheduleCRS());
+
+//		the main scenario must not load these inputs itself. The config is restored afterward, so that the output config is complete.
+		config.plans().setInputFile(null);
+		if (facilitiesFromFile) {
+			config.facilities().setInputFile(null);
+		}
+		config.network().setInputFile(null);
+		config.network().setChangeEventsInputFile(null);
+		config.vehicles().setVehiclesFile(null);
+		config.transit().setTransitScheduleFile(null);
+		config.transit().setVehiclesFile(null);
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			CompletableFuture<Scenario> network = networkFile == null ? null :
+				CompletableFuture.supplyAsync(timed("network " + networkFile, () -> ScenarioUtils.loadScenario(networkConfig)), executor);
+			CompletableFuture<Scenario> transitScenario = transit ?
+				CompletableFuture.supplyAsync(timed("transit schedule " + scheduleFile + " and transit vehicles " + transitVehiclesFile, () -> ScenarioUtils.loadScenario(transitConfig)), executor) : null;
+			CompletableFuture<Scenario> vehicles = vehiclesFile == null ? null :
+				CompletableFuture.supplyAsync(timed("vehicles " + vehiclesFile, () -> ScenarioUtils.loadScenario(vehiclesConfig)), executor);
+			CompletableFuture<Scenario> plans = CompletableFuture.supplyAsync(timed("plans " + plansFile, () -> ScenarioUtils.loadScenario(plansConfig)), executor);
+			CompletableFuture<Scenario> facilities = facilitiesFromFile ?
+				CompletableFuture.supplyAsync(timed("facilities " + facilitiesFile, () -> ScenarioUtils.loadScenario(facilitiesConfig)), executor) : null;
+
+			Scenario scenario = timed("remaining inputs", () -> ScenarioUtils.loadScenario(config)).get();
+
+			if (network != null) {
+				((MutableScenario) scenario).setNetwork(network.join().getNetwork());
+			}
+			if (transitScenario != null) {
+				copySchedule(transitScenario.join().getTransitSchedule(), scenario.getTransitSchedule());
+				copyVehicles(transitScenario.join().getTransitVehicles(), scenario.getTransitVehicles());
+			}
+			if (vehicles != null) {
+				copyVehicles(vehicles.join().getVehicles(), scenario.getVehicles());
+			}
+
+			Scenario plansScenario = plans.join();
+			plansScenario.getPopulation().getPersons().values().forEach(scenario.getPopulation()::addPerson);
+			plansScenario.getPopulation().getAttributes().getAsMap().forEach(scenario.getPopulation().getAttributes()::putAttribute);
+
+			if (facilities != null) {
+				Scenario facilitiesScenario = facilities.join();
+				facilitiesScenario.getActivityFacilities().getFacilities().values().forEach(scenario.getActivityFacilities()::addActivityFacility);
+			}
+
+			return scenario;
+		} finally {
+			executor.shutdown();
+			config.plans().setInputFile(plansFile);
+			config.facilities().setInputFile(facilitiesFile);
+			config.network().setInputFile(networkFile);
+			config.network().setChangeEventsInputFile(changeEventsFile);
+			config.vehicles().setVehiclesFile(vehiclesFile);
+			config.transit().setTransitScheduleFile(scheduleFile);
+			config.transit().setVehiclesFile(transitVehiclesFile);
+		}
+	}
+
+	private static void copySchedule(TransitSchedule from, TransitSchedule to) {
+		from.getFacilities().values().forEach(to::addStopFacility);
+		from.getTransitLines().values().forEach(to::addTransitLine);
+		MinimalTransferTimes.MinimalTransferTimesIterator it = from.getMinimalTransferTimes().iterator();
+		while (it.hasNext()) {
+			it.next();
+			to.getMinimalTransferTimes().set(it.getFromStopId(), it.getToStopId(), it.getSeconds());
+		}
+		from.getAttributes().getAsMap().forEach(to.getAttributes()::putAttribute);
+	}
+
+	private static void copyVehicles(Vehicles from, Vehicles to) {
+		from.getVehicleTypes().values().forEach(to::addVehicleType);
+		from.getVehicles().values().forEach(to::addVehicle);
+	}
+
+	/**
+	 * Config which only loads the inputs set explicitly.
+	 */
+	private static Config createPartialConfig(Config config) {
+		Config partial = ConfigUtils.createConfig();
+		partial.setContext(config.getContext());
+		partial.global().setCoordinateSystem(config.global().getCoordinateSystem());
+		partial.facilities().setFacilitiesSource(FacilitiesConfigGroup.FacilitiesSource.none);
+		partial.transit().setUseTransit(false);
+		return partial;
+	}
+
+	private static <T> Supplier<T> timed(String name, Supplier<T> loader) {
+		return () -> {
+			Instant start = Instant.now();
+			T result = loader.get();
+			log.info("Loading {} took {} s.", name, Duration.between(start, Instant.now()).toMillis() / 1000.);
+			return result;
+		};
+	}
+}
@@ -0,0 +1,277 @@
+package org.matsim.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.PopulationWriterHandler;
+import org.matsim.core.population.io.PopulationWriterHandlerImplV6;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Utils for processing populations person by person without holding the whole population in memory.
+ */
+public final class PopulationStreamingUtils {
+	private static final Logger log = LogManager.getLogger(PopulationStreamingUtils.class);
+
+	private static final int MERGE_QUEUE_SIZE = 1_000;
+
+	private PopulationStreamingUtils() {
+
+	}
+
+	/**
+	 * Read the input population person by person, apply the algorithm and write every person to output directly.
+	 */
+	public static void streamPopulation(String input, String output, PersonAlgorithm algorithm) {
+		filterPopulation(input, output, person -> {
+			algorithm.run(person);
+			return true;
+		});
+	}
+
+	/**
+	 * Read the input population person by person and only write persons to output, for which the filter returns true.
+	 * The filter may also modify the person before it is written.
+	 */
+	public static void filterPopulation(String input, String output, Predicate<Person> filter) {
+		StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+
+		int[] counts = new int[2];
+		writeStreaming(output, writer -> {
+			reader.addAlgorithm(person -> {
+				counts[0]++;
+				if (filter.test(person)) {
+					writer.run(person);
+					counts[1]++;
+				}
+			});
+			GzipPopulationIO.readPopulation(reader, input);
+		});
+
+		log.info("Streamed {} persons from {}, {} of them have been written to {}.", counts[0], input, counts[1], output);
+	}
+
+	/**
+	 * Read the input population in batches of persons and write the persons returned by the filter for every batch.
+	 * This allows to process the persons of a batch in parallel while keeping memory usage bounded by the batch size.
+	 * The filter has to return a new list, the batch itself is reused.
+	 */
+	public static void filterPopulationInBatches(String input, String output, int batchSize, UnaryOperator<List<Person>> filter) {
+		StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+
+		List<Person> batch = new ArrayList<>(batchSize);
+		int[] counts = new int[2];
+		writeStreaming(output, writer -> {
+			reader.addAlgorithm(person -> {
+				counts[0]++;
+				batch.add(person);
+				if (batch.size() >= batchSize) {
+					counts[1] += writeBatch(filter.apply(batch), writer);
+					batch.clear();
+				}
+			});
+			GzipPopulationIO.readPopulation(reader, input);
+			counts[1] += writeBatch(filter.apply(batch), writer);
+		});
+
+		log.info("Streamed {} persons from {}, {} of them have been written to {}.", counts[0], input, counts[1], output);
+	}
+
+	/**
+	 * Read several populations person by person and merge them into one output, ordered by the given key.
+	 * Every input has to be sorted by the key already, e.g. by the input index of sharded populations. The algorithm is applied to every person before writing.
+	 * Every input is read by its own thread into a bounded queue, so that the inputs can be merged without holding them in memory.
+	 */
+	public static void mergePopulations(List<String> inputs, String output, ToLongFunction<Person> order, PersonAlgorithm algorithm) {
+		List<BlockingQueue<Optional<Person>>> queues = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(inputs.size());
+		List<Future<?>> readers = new ArrayList<>();
+		for (String input : inputs) {
+			BlockingQueue<Optional<Person>> queue = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE);
+			queues.add(queue);
+			readers.add(executor.submit(() -> readInto(input, queue)));
+		}
+
+		int[] count = new int[1];
+		try {
+			writeStreaming(output, writer -> {
+				Person[] heads = new Person[inputs.size()];
+				long[] keys = new long[inputs.size()];
+				for (int i = 0; i < heads.length; i++) {
+					heads[i] = take(queues.get(i));
+					keys[i] = heads[i] == null ? Long.MAX_VALUE : order.applyAsLong(heads[i]);
+				}
+
+				while (true) {
+					int next = -1;
+					for (int i = 0; i < heads.length; i++) {
+						if (heads[i] != null && (next < 0 || keys[i] < keys[next])) {
+							next = i;
+						}
+					}
+					if (next < 0) {
+						break;
+					}
+
+					Person person = heads[next];
+					long key = keys[next];
+					heads[next] = take(queues.get(next));
+					if (heads[next] != null) {
+						keys[next] = order.applyAsLong(heads[next]);
+						if (keys[next] < key) {
+							throw new IllegalStateException("Population " + inputs.get(next) + " is not sorted: person " + heads[next].getId() + " comes after person " + person.getId() + ".");
+						}
+					}
+
+					algorithm.run(person);
+					writer.run(person);
+					count[0]++;
+				}
+			});
+
+//			propagate exceptions of the readers
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while merging populations.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not read population.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		log.info("Merged {} persons from {} populations to {}.", count[0], inputs.size(), output);
+	}
+
+	/**
+	 * Read the population into the queue. An empty element marks the end of the population, also if reading failed.
+	 */
+	private static void readInto(String input, BlockingQueue<Optional<Person>> queue) {
+		StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+		reader.addAlgorithm(person -> put(queue, Optional.of(person)));
+		try {
+			GzipPopulationIO.readPopulation(reader, input);
+		} finally {
+			put(queue, Optional.empty());
+		}
+	}
+
+	private static void put(BlockingQueue<Optional<Person>> queue, Optional<Person> person) {
+		try {
+			queue.put(person);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading population.", e);
+		}
+	}
+
+	private static Person take(BlockingQueue<Optional<Person>> queue) {
+		try {
+			return queue.take().orElse(null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while merging populations.", e);
+		}
+	}
+
+	/**
+	 * Run the body with a writer, which streams persons to output. Persons are streamed into a temporary file next to the output,
+	 * which replaces the output once the body has finished. Thus, the output may be the same file as the input, which is still read by the body.
+	 */
+	private static void writeStreaming(String output, Consumer<PersonAlgorithm> body) {
+		Path target = Path.of(output).toAbsolutePath();
+		Path tmp;
+		try {
+			Files.createDirectories(target.getParent());
+//			the temporary file ends with the name of the output, so that the compression is chosen by the same extension
+			tmp = Files.createTempFile(target.getParent(), ".streaming-", "-" + target.getFileName());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		try {
+			writeStreamingTo(tmp.toString(), body);
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			deleteQuietly(tmp);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Could not delete temporary file {}", path, e);
+		}
+	}
+
+	/**
+	 * Run the body with a writer, which streams persons to the given path. Gzip output is written through the parallel gzip stream of {@link GzipPopulationIO},
+	 * so the writing thread does not need to deflate, and no uncompressed intermediate file is needed.
+	 */
+	private static void writeStreamingTo(String output, Consumer<PersonAlgorithm> body) {
+		if (!output.endsWith(".gz")) {
+			StreamingPopulationWriter writer = new StreamingPopulationWriter();
+			writer.startStreaming(output);
+			try {
+				body.accept(writer);
+			} finally {
+				writer.closeStreaming();
+			}
+			return;
+		}
+
+		PopulationWriterHandler handler = new PopulationWriterHandlerImplV6(new IdentityTransformation());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(GzipPopulationIO.openOutput(Path.of(output)), StandardCharsets.UTF_8), 1 << 16)) {
+			handler.writeHeaderAndStartElement(writer);
+			handler.startPlans(PopulationUtils.createPopulation(ConfigUtils.createConfig()), writer);
+			body.accept(person -> {
+				try {
+					handler.writePerson(person, writer);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			handler.endPlans(writer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int writeBatch(List<Person> persons, PersonAlgorithm writer) {
+		persons.forEach(writer::run);
+		return persons.size();
+	}
+}
@@ -0,0 +1,300 @@
+package org.matsim.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Local on-disk cache for remote (http/https) input files.
+ * Every url has a directory derived from the hash of the url. The content is stored in a sub directory named by its SHA-256 checksum,
+ * the metadata file of the url points to the current checksum and stores the ETag and Last-Modified header of the server.
+ * <p>
+ * On every use, the checksum of the local file is verified, and the file is revalidated with a conditional request against the server.
+ * Changed files are downloaded again, corrupt local files are replaced. Files are moved into place atomically and old versions are kept,
+ * so several processes (e.g. cluster nodes) can share one cache directory.
+ */
+public final class RemoteInputCache {
+	private static final Logger log = LogManager.getLogger(RemoteInputCache.class);
+	private static final String META_FILE = "meta.properties";
+	private static final String CHECKSUM = "sha256";
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "lastModified";
+	private static final int DOWNLOAD_THREADS = 8;
+
+	private final Path cacheDir;
+	private final boolean offline;
+	private final HttpClient client;
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger downloads = new AtomicInteger();
+
+	public RemoteInputCache(Path cacheDir, boolean offline) {
+		this.cacheDir = cacheDir;
+		this.offline = offline;
+		this.client = HttpClient.newBuilder()
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.connectTimeout(Duration.ofSeconds(30))
+			.build();
+	}
+
+	/**
+	 * Replace all remote input files of the config by local copies. Files are verified and revalidated concurrently.
+	 */
+	public void resolveConfigInputs(Config config) {
+		Map<String, Consumer<String>> inputs = new LinkedHashMap<>();
+		register(inputs, config.network()::getInputFile, config.network()::setInputFile);
+		register(inputs, config.plans()::getInputFile, config.plans()::setInputFile);
+		register(inputs, config.facilities()::getInputFile, config.facilities()::setInputFile);
+		register(inputs, config.vehicles()::getVehiclesFile, config.vehicles()::setVehiclesFile);
+		register(inputs, config.transit()::getTransitScheduleFile, config.transit()::setTransitScheduleFile);
+		register(inputs, config.transit()::getVehiclesFile, config.transit()::setVehiclesFile);
+		register(inputs, config.counts()::getCountsFileName, config.counts()::setInputFile);
+
+		if (config.getModules().containsKey(EmissionsConfigGroup.GROUP_NAME)) {
+			EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
+			register(inputs, eConfig::getDetailedColdEmissionFactorsFile, eConfig::setDetailedColdEmissionFactorsFile);
+			register(inputs, eConfig::getDetailedWarmEmissionFactorsFile, eConfig::setDetailedWarmEmissionFactorsFile);
+			register(inputs, eConfig::getAverageColdEmissionFactorsFile, eConfig::setAverageColdEmissionFactorsFile);
+			register(inputs, eConfig::getAverageWarmEmissionFactorsFile, eConfig::setAverageWarmEmissionFactorsFile);
+		}
+
+		Map<String, Path> resolved = resolve(inputs.keySet());
+		inputs.forEach((url, setter) -> setter.accept(resolved.get(url).toUri().toString()));
+	}
+
+	/**
+	 * Resolve urls to verified and up-to-date local files. Urls are processed concurrently.
+	 */
+	public Map<String, Path> resolve(Set<String> urls) {
+		Map<String, Path> result = new LinkedHashMap<>();
+		if (urls.isEmpty()) {
+			return result;
+		}
+
+		hits.set(0);
+		downloads.set(0);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(DOWNLOAD_THREADS, urls.size()));
+		try {
+			Map<String, Future<Path>> futures = new LinkedHashMap<>();
+			for (String url : urls) {
+				futures.put(url, executor.submit((Callable<Path>) () -> resolve(url)));
+			}
+			for (Map.Entry<String, Future<Path>> e : futures.entrySet()) {
+				result.put(e.getKey(), e.getValue().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while resolving inputs.", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not resolve inputs.", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+
+		log.info("{} of {} remote inputs were up to date in {}, {} downloaded.", hits.get(), urls.size(), cacheDir, downloads.get());
+		return result;
+	}
+
+	private static void register(Map<String, Consumer<String>> inputs, Supplier<String> getter, Consumer<String> setter) {
+		String value = getter.get();
+		if (value != null && (value.startsWith("http://") || value.startsWith("https://"))) {
+			inputs.merge(value, setter, Consumer::andThen);
+		}
+	}
+
+	/**
+	 * Verify the local copy of an url, revalidate it against the server and download it, if it is missing, corrupt or outdated.
+	 */
+	private Path resolve(String url) throws IOException, InterruptedException {
+		Path urlDir = cacheDir.resolve(hash(url.getBytes(StandardCharsets.UTF_8)));
+		Properties meta = loadMeta(urlDir);
+
+		Path local = null;
+		if (meta.getProperty(CHECKSUM) != null) {
+			Path file = localFile(urlDir, meta.getProperty(CHECKSUM), url);
+			if (Files.isRegularFile(file)) {
+				String checksum;
+				try (InputStream in = Files.newInputStream(file)) {
+					checksum = hash(in);
+				}
+				if (checksum.equals(meta.getProperty(CHECKSUM))) {
+					local = file;
+				} else {
+					log.warn("Cached file {} of {} is corrupt, checksum {} instead of {}.", file, url, checksum, meta.getProperty(CHECKSUM));
+				}
+			}
+		}
+
+		if (offline) {
+			if (local == null) {
+				throw new IllegalStateException("Offline mode, but " + url + " is not cached or corrupt in " + cacheDir);
+			}
+			hits.incrementAndGet();
+			return local;
+		}
+
+		if (local != null && meta.getProperty(ETAG) == null && meta.getProperty(LAST_MODIFIED) == null) {
+//			the server provides no validators, the verified local file is used
+			hits.incrementAndGet();
+			return local;
+		}
+
+		return download(url, urlDir, local, meta);
+	}
+
+	/**
+	 * Conditional request, if there is a valid local file. The content is stored by its checksum, the metadata file is replaced afterward.
+	 * If the server can not be reached or answers with an error, a valid local file is used anyway.
+	 */
+	private Path download(String url, Path urlDir, Path local, Properties meta) throws IOException, InterruptedException {
+		Instant start = Instant.now();
+		Files.createDirectories(urlDir);
+
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).GET();
+		if (local != null) {
+			if (meta.getProperty(ETAG) != null) {
+				request.header("If-None-Match", meta.getProperty(ETAG));
+			}
+			if (meta.getProperty(LAST_MODIFIED) != null) {
+				request.header("If-Modified-Since", meta.getProperty(LAST_MODIFIED));
+			}
+		}
+
+		Path tmp = Files.createTempFile(urlDir, "download", ".part");
+		try {
+			HttpResponse<Path> response;
+			try {
+				response = client.send(request.build(), HttpResponse.BodyHandlers.ofFile(tmp));
+			} catch (IOException e) {
+				if (local == null) {
+					throw e;
+				}
+				log.warn("Could not revalidate {}, using the verified cached file {}: {}", url, local, e.toString());
+				hits.incrementAndGet();
+				return local;
+			}
+			if (response.statusCode() == 304 && local != null) {
+				hits.incrementAndGet();
+				return local;
+			}
+			if (response.statusCode() != 200) {
+				if (local == null) {
+					throw new IOException("Could not download " + url + ", status code " + response.statusCode());
+				}
+//				the server is not able to answer, the run does not depend on it, as long as a verified copy exists
+				log.warn("Could not revalidate {}, status code {}, using the verified cached file {}.", url, response.statusCode(), local);
+				hits.incrementAndGet();
+				return local;
+			}
+
+			String checksum;
+			try (InputStream in = Files.newInputStream(tmp)) {
+				checksum = hash(in);
+			}
+
+			Path target = localFile(urlDir, checksum, url);
+			Files.createDirectories(target.getParent());
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			Properties updated = new Properties();
+			updated.setProperty(CHECKSUM, checksum);
+			response.headers().firstValue("ETag").ifPresent(v -> updated.setProperty(ETAG, v));
+			response.headers().firstValue("Last-Modified").ifPresent(v -> updated.setProperty(LAST_MODIFIED, v));
+			storeMeta(urlDir, updated);
+
+			if (local != null && !checksum.equals(meta.getProperty(CHECKSUM))) {
+				log.info("Remote file {} has changed.", url);
+			}
+			log.info("Downloaded {} ({} MB) in {} s.", url, Files.size(target) / 1_000_000, Duration.between(start, Instant.now()).toSeconds());
+			downloads.incrementAndGet();
+			return target;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Cached files keep their original name, so that compression and encryption are still detected by their extension.
+	 */
+	private static Path localFile(Path urlDir, String checksum, String url) {
+		return urlDir.resolve(checksum).resolve(url.substring(url.lastIndexOf('/') + 1));
+	}
+
+	private static Properties loadMeta(Path urlDir) throws IOException {
+		Properties meta = new Properties();
+		Path file = urlDir.resolve(META_FILE);
+		if (Files.isRegularFile(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				meta.load(in);
+			}
+		}
+		return meta;
+	}
+
+	private static void storeMeta(Path urlDir, Properties meta) throws IOException {
+		Path tmp = Files.createTempFile(urlDir, META_FILE, ".part");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				meta.store(out, null);
+			}
+			Files.move(tmp, urlDir.resolve(META_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		return HexFormat.of().formatHex(sha256().digest(bytes));
+	}
+
+	private static String hash(InputStream in) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[1 << 20];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			digest.update(buffer, 0, read);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,461 @@
+package org.matsim.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacilitiesFactory;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.ActivityOption;
+import org.matsim.facilities.OpeningTime;
+import org.matsim.facilities.OpeningTimeImpl;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compact binary snapshot of the prepared network and activity facilities of a scenario.
+ * All ids, modes, activity types and string attributes are interned in one string table, which is written before the data.
+ * Equal allowed mode sets are stored and restored as one shared instance.
+ * Snapshots are read with a memory-mapped buffer.
+ * The header contains the {@link Source} of the snapshot, so that a snapshot of outdated input files or another CRS can be detected.
+ */
+public final class ScenarioSnapshot {
+	private static final Logger log = LogManager.getLogger(ScenarioSnapshot.class);
+
+	private static final int MAGIC = 0x44445331;
+	private static final int VERSION = 2;
+
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_DOUBLE = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+
+	private ScenarioSnapshot() {
+
+	}
+
+	/**
+	 * File names and content hashes of the network and facilities files, from which the snapshot was created, and the CRS.
+	 * Hashes are only computed for local files and are null otherwise.
+	 */
+	public record Source(String networkFile, String networkHash, String facilitiesFile, String facilitiesHash, String crs) {
+
+		/**
+		 * Describe the given input files.
+		 */
+		public static Source of(URL network, URL facilities, String crs) throws IOException {
+			return new Source(fileName(network), hash(network), fileName(facilities), hash(facilities), crs);
+		}
+
+		/**
+		 * Whether the snapshot has been created from the same files. Hashes are only compared if both are known, file names are compared otherwise.
+		 */
+		public boolean matches(Source other) {
+			boolean network = networkHash != null && other.networkHash != null ? networkHash.equals(other.networkHash) : Objects.equals(networkFile, other.networkFile);
+			boolean facilities = facilitiesHash != null && other.facilitiesHash != null ? facilitiesHash.equals(other.facilitiesHash) : Objects.equals(facilitiesFile, other.facilitiesFile);
+			return network && facilities && Objects.equals(crs, other.crs);
+		}
+
+		private static String fileName(URL url) {
+			if (url == null) {
+				return null;
+			}
+			String path = url.getPath();
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+
+		private static String hash(URL url) throws IOException {
+			if (url == null || !"file".equals(url.getProtocol())) {
+				return null;
+			}
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			try (InputStream in = url.openStream()) {
+				byte[] buffer = new byte[1 << 20];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		}
+	}
+
+	/**
+	 * Write network and facilities of the scenario.
+	 *
+	 * @param emissionAttributes whether the hbefa link attributes have been added to the network
+	 */
+	public static void write(Path path, Scenario scenario, boolean emissionAttributes, Source source) throws IOException {
+		Network network = scenario.getNetwork();
+		ActivityFacilities facilities = scenario.getActivityFacilities();
+
+		for (Link link : network.getLinks().values()) {
+			if (NetworkUtils.getDisallowedNextLinks(link) != null) {
+				throw new IllegalStateException("Disallowed next links are not supported by the snapshot, but found for link " + link.getId());
+			}
+		}
+
+		StringTable strings = new StringTable();
+		collectStrings(network, facilities, strings);
+
+		List<Set<String>> modeSets = new ArrayList<>();
+		Map<Set<String>, Integer> modeSetIndex = new HashMap<>();
+		for (Link link : network.getLinks().values()) {
+			modeSetIndex.computeIfAbsent(link.getAllowedModes(), modes -> {
+				modeSets.add(modes);
+				return modeSets.size() - 1;
+			});
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, source.networkFile());
+			writeString(out, source.networkHash());
+			writeString(out, source.facilitiesFile());
+			writeString(out, source.facilitiesHash());
+			writeString(out, source.crs());
+			out.writeBoolean(emissionAttributes);
+
+			out.writeInt(strings.values.size());
+			for (String s : strings.values) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeDouble(network.getCapacityPeriod());
+			out.writeDouble(network.getEffectiveLaneWidth());
+			writeAttributes(out, network.getAttributes(), strings);
+
+			Map<Id<Node>, Integer> nodeIndex = new HashMap<>();
+			out.writeInt(network.getNodes().size());
+			for (Node node : network.getNodes().values()) {
+				nodeIndex.put(node.getId(), nodeIndex.size());
+				out.writeInt(strings.get(node.getId().toString()));
+				writeCoord(out, node.getCoord());
+				writeAttributes(out, node.getAttributes(), strings);
+			}
+
+			out.writeInt(modeSets.size());
+			for (Set<String> modes : modeSets) {
+				out.writeInt(modes.size());
+				for (String mode : modes) {
+					out.writeInt(strings.get(mode));
+				}
+			}
+
+			out.writeInt(network.getLinks().size());
+			for (Link link : network.getLinks().values()) {
+				out.writeInt(strings.get(link.getId().toString()));
+				out.writeInt(nodeIndex.get(link.getFromNode().getId()));
+				out.writeInt(nodeIndex.get(link.getToNode().getId()));
+				out.writeDouble(link.getLength());
+				out.writeDouble(link.getFreespeed());
+				out.writeDouble(link.getCapacity());
+				out.writeDouble(link.getNumberOfLanes());
+				out.writeInt(modeSetIndex.get(link.getAllowedModes()));
+				writeAttributes(out, link.getAttributes(), strings);
+			}
+
+			out.writeInt(facilities.getFacilities().size());
+			for (ActivityFacility facility : facilities.getFacilities().values()) {
+				out.writeInt(strings.get(facility.getId().toString()));
+				writeCoord(out, facility.getCoord());
+				out.writeInt(facility.getLinkId() == null ? -1 : strings.get(facility.getLinkId().toString()));
+				out.writeInt(facility.getActivityOptions().size());
+				for (ActivityOption option : facility.getActivityOptions().values()) {
+					out.writeInt(strings.get(option.getType()));
+					out.writeDouble(option.getCapacity());
+					out.writeInt(option.getOpeningTimes().size());
+					for (OpeningTime openingTime : option.getOpeningTimes()) {
+						out.writeDouble(openingTime.getStartTime());
+						out.writeDouble(openingTime.getEndTime());
+					}
+				}
+				writeAttributes(out, facility.getAttributes(), strings);
+			}
+		}
+
+		log.info("Snapshot with {} nodes, {} links ({} distinct mode sets), {} facilities and {} distinct strings written to {} ({} MB).",
+			network.getNodes().size(), network.getLinks().size(), modeSets.size(), facilities.getFacilities().size(), strings.values.size(),
+			path, Files.size(path) / 1_000_000);
+	}
+
+	/**
+	 * Read the source of a snapshot, null if the file is no snapshot of the current version.
+	 */
+	public static Source readSource(Path path) throws IOException {
+		MappedByteBuffer buffer = map(path);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			return null;
+		}
+		return readSource(buffer);
+	}
+
+	/**
+	 * Read a snapshot into the (empty) network and facilities of the scenario.
+	 *
+	 * @return whether the hbefa link attributes have been added to the network before writing the snapshot
+	 */
+	public static boolean read(Path path, Scenario scenario) throws IOException {
+		MappedByteBuffer buffer = map(path);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IllegalArgumentException("Not a snapshot of version " + VERSION + ": " + path);
+		}
+		readSource(buffer);
+		boolean emissionAttributes = buffer.get() != 0;
+
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			strings[i] = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8).intern();
+		}
+
+		Network network = scenario.getNetwork();
+		NetworkFactory factory = network.getFactory();
+		network.setCapacityPeriod(buffer.getDouble());
+		network.setEffectiveLaneWidth(buffer.getDouble());
+		readAttributes(buffer, network.getAttributes(), strings);
+
+		Node[] nodes = new Node[buffer.getInt()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = factory.createNode(Id.createNodeId(strings[buffer.getInt()]), readCoord(buffer));
+			readAttributes(buffer, nodes[i].getAttributes(), strings);
+			network.addNode(nodes[i]);
+		}
+
+		List<Set<String>> modeSets = new ArrayList<>();
+		int nModeSets = buffer.getInt();
+		for (int i = 0; i < nModeSets; i++) {
+			String[] modes = new String[buffer.getInt()];
+			for (int j = 0; j < modes.length; j++) {
+				modes[j] = strings[buffer.getInt()];
+			}
+			modeSets.add(Set.of(modes));
+		}
+
+		int nLinks = buffer.getInt();
+		for (int i = 0; i < nLinks; i++) {
+			Link link = factory.createLink(Id.createLinkId(strings[buffer.getInt()]), nodes[buffer.getInt()], nodes[buffer.getInt()]);
+			link.setLength(buffer.getDouble());
+			link.setFreespeed(buffer.getDouble());
+			link.setCapacity(buffer.getDouble());
+			link.setNumberOfLanes(buffer.getDouble());
+			link.setAllowedModes(modeSets.get(buffer.getInt()));
+			readAttributes(buffer, link.getAttributes(), strings);
+			network.addLink(link);
+		}
+
+		ActivityFacilities facilities = scenario.getActivityFacilities();
+		ActivityFacilitiesFactory facilitiesFactory = facilities.getFactory();
+		int nFacilities = buffer.getInt();
+		for (int i = 0; i < nFacilities; i++) {
+			Id<ActivityFacility> id = Id.create(strings[buffer.getInt()], ActivityFacility.class);
+			Coord coord = readCoord(buffer);
+			int linkIdx = buffer.getInt();
+			ActivityFacility facility = facilitiesFactory.createActivityFacility(id, coord, linkIdx < 0 ? null : Id.createLinkId(strings[linkIdx]));
+
+			int nOptions = buffer.getInt();
+			for (int j = 0; j < nOptions; j++) {
+				ActivityOption option = facilitiesFactory.createActivityOption(strings[buffer.getInt()]);
+				option.setCapacity(buffer.getDouble());
+				int nOpeningTimes = buffer.getInt();
+				for (int k = 0; k < nOpeningTimes; k++) {
+					option.addOpeningTime(new OpeningTimeImpl(buffer.getDouble(), buffer.getDouble()));
+				}
+				facility.addActivityOption(option);
+			}
+			readAttributes(buffer, facility.getAttributes(), strings);
+			facilities.addActivityFacility(facility);
+		}
+
+		log.info("Read snapshot with {} nodes, {} links and {} facilities from {}.", nodes.length, nLinks, nFacilities, path);
+		return emissionAttributes;
+	}
+
+	private static MappedByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Snapshot is too large to be mapped: " + path);
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static Source readSource(ByteBuffer buffer) {
+		return new Source(readString(buffer), readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+	}
+
+	/**
+	 * Nullable string, written with its length. Null is written as length -1.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void collectStrings(Network network, ActivityFacilities facilities, StringTable strings) {
+		collectAttributes(network.getAttributes(), strings);
+		for (Node node : network.getNodes().values()) {
+			strings.add(node.getId().toString());
+			collectAttributes(node.getAttributes(), strings);
+		}
+		for (Link link : network.getLinks().values()) {
+			strings.add(link.getId().toString());
+			link.getAllowedModes().forEach(strings::add);
+			collectAttributes(link.getAttributes(), strings);
+		}
+		for (ActivityFacility facility : facilities.getFacilities().values()) {
+			strings.add(facility.getId().toString());
+			if (facility.getLinkId() != null) {
+				strings.add(facility.getLinkId().toString());
+			}
+			facility.getActivityOptions().values().forEach(option -> strings.add(option.getType()));
+			collectAttributes(facility.getAttributes(), strings);
+		}
+	}
+
+	private static void collectAttributes(Attributes attributes, StringTable strings) {
+		for (Map.Entry<String, Object> entry : attributes.getAsMap().entrySet()) {
+			strings.add(entry.getKey());
+			if (entry.getValue() instanceof String value) {
+				strings.add(value);
+			}
+		}
+	}
+
+	private static void writeCoord(DataOutputStream out, Coord coord) throws IOException {
+		out.writeBoolean(coord.hasZ());
+		out.writeDouble(coord.getX());
+		out.writeDouble(coord.getY());
+		if (coord.hasZ()) {
+			out.writeDouble(coord.getZ());
+		}
+	}
+
+	private static Coord readCoord(ByteBuffer buffer) {
+		boolean hasZ = buffer.get() != 0;
+		double x = buffer.getDouble();
+		double y = buffer.getDouble();
+		return hasZ ? new Coord(x, y, buffer.getDouble()) : new Coord(x, y);
+	}
+
+	private static void writeAttributes(DataOutputStream out, Attributes attributes, StringTable strings) throws IOException {
+		Map<String, Object> map = attributes.getAsMap();
+		out.writeInt(map.size());
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			out.writeInt(strings.get(entry.getKey()));
+			switch (entry.getValue()) {
+				case String value -> {
+					out.writeByte(TYPE_STRING);
+					out.writeInt(strings.get(value));
+				}
+				case Double value -> {
+					out.writeByte(TYPE_DOUBLE);
+					out.writeDouble(value);
+				}
+				case Integer value -> {
+					out.writeByte(TYPE_INTEGER);
+					out.writeInt(value);
+				}
+				case Long value -> {
+					out.writeByte(TYPE_LONG);
+					out.writeLong(value);
+				}
+				case Boolean value -> {
+					out.writeByte(TYPE_BOOLEAN);
+					out.writeBoolean(value);
+				}
+				default -> throw new IllegalArgumentException("Attribute " + entry.getKey() + " of type " + entry.getValue().getClass() + " is not supported by the snapshot.");
+			}
+		}
+	}
+
+	private static void readAttributes(ByteBuffer buffer, Attributes attributes, String[] strings) {
+		int n = buffer.getInt();
+		for (int i = 0; i < n; i++) {
+			String key = strings[buffer.getInt()];
+			byte type = buffer.get();
+			Object value = switch (type) {
+				case TYPE_STRING -> strings[buffer.getInt()];
+				case TYPE_DOUBLE -> buffer.getDouble();
+				case TYPE_INTEGER -> buffer.getInt();
+				case TYPE_LONG -> buffer.getLong();
+				case TYPE_BOOLEAN -> buffer.get() != 0;
+				default -> throw new IllegalArgumentException("Unknown attribute type " + type);
+			};
+			attributes.putAttribute(key, value);
+		}
+	}
+
+	/**
+	 * Interns strings and assigns them consecutive indices.
+	 */
+	private static final class StringTable {
+		private final Map<String, Integer> index = new LinkedHashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		private void add(String s) {
+			index.computeIfAbsent(s, k -> {
+				values.add(k);
+				return values.size() - 1;
+			});
+		}
+
+		private int get(String s) {
+			return index.get(s);
+		}
+	}
+}
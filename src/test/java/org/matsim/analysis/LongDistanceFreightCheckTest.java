@@ -0,0 +1,80 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.population.PopulationUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class LongDistanceFreightCheckTest {
+
+	@TempDir
+	private Path dir;
+
+	private final PopulationFactory factory = PopulationUtils.getFactory();
+
+	@Test
+	void summaryOfSelectedPlansInInputOrder() throws IOException {
+		Path summary = dir.resolve("summary.tsv");
+		LongDistanceFreightCheck check = new LongDistanceFreightCheck(summary, false, 0);
+
+		check.visit(person("b", 1));
+		Person twoPlans = person("a", 2);
+		Plan selected = plan(10);
+		twoPlans.addPlan(selected);
+		twoPlans.setSelectedPlan(selected);
+		check.visit(twoPlans);
+		check.visit(person("c", 3));
+		check.finish();
+
+//		more than one plan does not invalidate the population, even if no rows may be spilled
+		Assertions.assertTrue(check.isValid());
+		Assertions.assertEquals(List.of(
+			"trip_id\tfrom_x\tfrom_y\tto_x\tto_y",
+			"b\t1.0\t1.0\t2.0\t2.0",
+			"a\t10.0\t10.0\t11.0\t11.0",
+			"c\t3.0\t3.0\t4.0\t4.0"
+		), Files.readAllLines(summary));
+	}
+
+	@Test
+	void noSummaryForInvalidPopulation() throws IOException {
+		Path summary = dir.resolve("summary.tsv");
+		LongDistanceFreightCheck check = new LongDistanceFreightCheck(summary, false, 10);
+
+		check.visit(person("a", 1));
+		Person missing = factory.createPerson(Id.createPersonId("b"));
+		Plan plan = factory.createPlan();
+		plan.addActivity(factory.createActivityFromCoord("freight_start", new Coord(0, 0)));
+		missing.addPlan(plan);
+		check.visit(missing);
+		check.finish();
+
+		Assertions.assertFalse(check.isValid());
+		Assertions.assertFalse(Files.exists(summary));
+		Assertions.assertEquals(2, Files.readAllLines(dir.resolve("summary-invalid.tsv")).size());
+	}
+
+	private Person person(String id, double coord) {
+		Person person = factory.createPerson(Id.createPersonId(id));
+		person.addPlan(plan(coord));
+		return person;
+	}
+
+	private Plan plan(double coord) {
+		Plan plan = factory.createPlan();
+		plan.addActivity(factory.createActivityFromCoord("freight_start", new Coord(coord, coord)));
+		plan.addLeg(factory.createLeg("freight"));
+		plan.addActivity(factory.createActivityFromCoord("freight_end", new Coord(coord + 1, coord + 1)));
+		return plan;
+	}
+}
@@ -0,0 +1,66 @@
+package org.matsim.analysis;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class TiledNoiseAnalysisTest {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void mergeReceiverPointFiles() throws IOException {
+		List<Path> tiles = List.of(dir.resolve("tile_0"), dir.resolve("tile_1"));
+		for (int i = 0; i < tiles.size(); i++) {
+			Path noise = tiles.get(i).resolve("noise-analysis");
+			write(noise.resolve("immissions/immission_3600.0.csv"), "Receiver Point Id;immission_3600.0;x;y;t", "0;" + i + ";1;2;3600");
+			write(noise.resolve("damages_receiverPoint/damages.csv.gz"), "Receiver Point Id;damages", "0;" + i);
+			write(noise.resolve("emissions/emission_3600.0.csv"), "Link Id;emission", "l1;5.0");
+		}
+
+		Path target = dir.resolve("merged");
+		TiledNoiseAnalysis.merge(tiles, target);
+
+		Assertions.assertEquals(List.of("Receiver Point Id;immission_3600.0;x;y;t", "0_0;0;1;2;3600", "1_0;1;1;2;3600"),
+			read(target.resolve("immissions/immission_3600.0.csv")));
+		Assertions.assertEquals(List.of("Receiver Point Id;damages", "0_0;0", "1_0;1"),
+			read(target.resolve("damages_receiverPoint/damages.csv.gz")));
+		Assertions.assertEquals(List.of("Link Id;emission", "l1;5.0"),
+			read(target.resolve("emissions/emission_3600.0.csv")));
+	}
+
+	@Test
+	void failOnUnmergeableFiles() throws IOException {
+		List<Path> tiles = List.of(dir.resolve("tile_0"), dir.resolve("tile_1"));
+		for (int i = 0; i < tiles.size(); i++) {
+			write(tiles.get(i).resolve("noise-analysis/other.csv"), "Some Id;value", "a;" + i);
+		}
+
+		Assertions.assertThrows(IllegalStateException.class, () -> TiledNoiseAnalysis.merge(tiles, dir.resolve("merged")));
+	}
+
+	private static void write(Path file, String... lines) throws IOException {
+		Files.createDirectories(file.getParent());
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(file.toString())) {
+			for (String line : lines) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+	}
+
+	private static List<String> read(Path file) throws IOException {
+		try (BufferedReader reader = IOUtils.getBufferedReader(file.toString())) {
+			return reader.lines().toList();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.matsim.analysis.emissions;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.emissions.HbefaVehicleCategory;
+import org.matsim.contrib.emissions.Pollutant;
+import org.matsim.utils.HbefaTableCache;
+import org.matsim.vehicles.EngineInformation;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+class WarmEmissionFactorResolverTest {
+
+	private static final String ROAD_TYPE = "URB/Local/50";
+	private static final String FREEFLOW = ROAD_TYPE + "/Freeflow";
+	private static final String STOP_AND_GO = ROAD_TYPE + "/St+Go";
+	private static final int NOX = Pollutant.NOx.ordinal();
+
+	private static final List<String> DETAILED_KEYS = List.of("VehCat", "TrafficSit", "Component", "Technology", "SizeClasse", "EmConcept");
+	private static final List<String> DETAILED_VALUES = List.of("EFA", "V", "%OfSubsegment");
+
+	/**
+	 * Detailed rows of two emission concepts with their share of the subsegment, and the technology average row as it is exported by HBEFA.
+	 */
+	private static final List<String[]> DETAILED = List.of(
+		new String[]{"pass. car", FREEFLOW, "NOx", "petrol (4S)", "<1,4L", "PC-P-Euro-4"},
+		new String[]{"pass. car", STOP_AND_GO, "NOx", "petrol (4S)", "<1,4L", "PC-P-Euro-4"},
+		new String[]{"pass. car", FREEFLOW, "NOx", "petrol (4S)", "<1,4L", "PC-P-Euro-6"},
+		new String[]{"pass. car", STOP_AND_GO, "NOx", "petrol (4S)", "<1,4L", "PC-P-Euro-6"},
+		new String[]{"pass. car", FREEFLOW, "NOx", "petrol (4S)", "average", "average"},
+		new String[]{"pass. car", STOP_AND_GO, "NOx", "petrol (4S)", "average", "average"}
+	);
+	private static final double[][] DETAILED_ROW_VALUES = {
+		{1.0, 50, 0.9},
+		{2.0, 10, 0.9},
+		{3.0, 50, 0.1},
+		{4.0, 10, 0.1},
+		{1.5, 48, 1.0},
+		{2.5, 12, 1.0}
+	};
+
+	private final WarmEmissionFactorResolver resolver = new WarmEmissionFactorResolver(
+		table(DETAILED_KEYS, DETAILED_VALUES, DETAILED, DETAILED_ROW_VALUES),
+		table(List.of("VehCat", "TrafficSit", "Component"), List.of("EFA_weighted", "V_weighted"),
+			List.of(new String[]{"pass. car", FREEFLOW, "NOx"}, new String[]{"pass. car", STOP_AND_GO, "NOx"}),
+			new double[][]{{5.0, 45}, {6.0, 8}}));
+
+	@Test
+	void detailed() {
+		WarmEmissionFactorResolver.Factors f = get("petrol (4S)", "<1,4L", "PC-P-Euro-6");
+		Assertions.assertEquals(3.0, f.freeflow()[NOX]);
+		Assertions.assertEquals(4.0, f.stopAndGo()[NOX]);
+		Assertions.assertEquals(50, f.freeflowSpeed());
+		Assertions.assertEquals(10, f.stopAndGoSpeed());
+	}
+
+	/**
+	 * Like the emissions contrib, the technology average is the "technology; average; average" row of the detailed table,
+	 * not a mean of the detailed rows weighted by %OfSubsegment (which would be 1.2 and 2.2).
+	 */
+	@Test
+	void technologyAverageLikeContrib() {
+		WarmEmissionFactorResolver.Factors f = get("petrol (4S)", ">2L", "PC-P-Euro-5");
+		Assertions.assertEquals(1.5, f.freeflow()[NOX]);
+		Assertions.assertEquals(2.5, f.stopAndGo()[NOX]);
+		Assertions.assertEquals(48, f.freeflowSpeed());
+		Assertions.assertEquals(12, f.stopAndGoSpeed());
+	}
+
+	@Test
+	void averageTable() {
+		WarmEmissionFactorResolver.Factors f = get("diesel", "<1,4L", "PC-D-Euro-6");
+		Assertions.assertEquals(5.0, f.freeflow()[NOX]);
+		Assertions.assertEquals(6.0, f.stopAndGo()[NOX]);
+		Assertions.assertArrayEquals(new int[]{NOX}, f.pollutants());
+
+//		resolved combinations are cached
+		Assertions.assertSame(f, get("diesel", "<1,4L", "PC-D-Euro-6"));
+	}
+
+	private WarmEmissionFactorResolver.Factors get(String technology, String sizeClass, String concept) {
+		VehicleType type = VehicleUtils.createVehicleType(Id.create(technology + sizeClass + concept, VehicleType.class));
+		EngineInformation engine = type.getEngineInformation();
+		VehicleUtils.setHbefaVehicleCategory(engine, HbefaVehicleCategory.PASSENGER_CAR.toString());
+		VehicleUtils.setHbefaTechnology(engine, technology);
+		VehicleUtils.setHbefaSizeClass(engine, sizeClass);
+		VehicleUtils.setHbefaEmissionsConcept(engine, concept);
+
+		return resolver.get(resolver.getRoadTypeIndex(ROAD_TYPE), resolver.getVehicleTypeIndex(type));
+	}
+
+	/**
+	 * Create a table like the HBEFA cache does, with sorted dictionaries of the key columns.
+	 */
+	private static HbefaTableCache.KeyedTable table(List<String> keyColumns, List<String> valueColumns, List<String[]> keyRows, double[][] valueRows) {
+		String[][] dictionaries = new String[keyColumns.size()][];
+		for (int c = 0; c < dictionaries.length; c++) {
+			TreeSet<String> texts = new TreeSet<>();
+			for (String[] row : keyRows) {
+				texts.add(row[c]);
+			}
+			dictionaries[c] = texts.toArray(String[]::new);
+		}
+
+		int[] keys = new int[keyRows.size() * keyColumns.size()];
+		double[] values = new double[keyRows.size() * valueColumns.size()];
+		for (int row = 0; row < keyRows.size(); row++) {
+			for (int c = 0; c < keyColumns.size(); c++) {
+				keys[row * keyColumns.size() + c] = Arrays.binarySearch(dictionaries[c], keyRows.get(row)[c]);
+			}
+			for (int c = 0; c < valueColumns.size(); c++) {
+				values[row * valueColumns.size() + c] = valueRows[row][c];
+			}
+		}
+		return new HbefaTableCache.KeyedTable(keyColumns.toArray(String[]::new), dictionaries, valueColumns.toArray(String[]::new), keyRows.size(), keys, values);
+	}
+}
@@ -0,0 +1,61 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+class CachedPrepareStepTest {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void keyIgnoresOutputs() throws Exception {
+		Path input = Files.writeString(dir.resolve("input.txt"), "input");
+		Path output = dir.resolve("output.txt");
+		String[] args = {"--input", input.toString(), "--output", output.toString()};
+
+		String before = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(output), new Properties());
+		Files.writeString(output, "output");
+		String after = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(output), new Properties());
+
+		Assertions.assertEquals(before, after);
+	}
+
+	@Test
+	void keyChangesWithInputContent() throws Exception {
+		Path input = Files.writeString(dir.resolve("input.txt"), "input");
+		String[] args = {"--input", input.toString()};
+
+		String before = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(), new Properties());
+		Files.writeString(input, "changed input");
+		String after = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(), new Properties());
+
+		Assertions.assertNotEquals(before, after);
+	}
+
+	@Test
+	void keyChangesWithInputOfPipelineStep() throws Exception {
+		Path network = Files.writeString(dir.resolve("network.xml"), "network");
+		String[] args = {"--step", "facilities --network " + network};
+
+		String before = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(), new Properties());
+		Files.writeString(network, "changed network");
+		String after = CachedPrepareStep.computeKey(CachedPrepareStep.class, args, List.of(), new Properties());
+
+		Assertions.assertNotEquals(before, after);
+	}
+
+	@Test
+	void argumentsAreDelimited() throws Exception {
+		String a = CachedPrepareStep.computeKey(CachedPrepareStep.class, new String[]{"ab", "c"}, List.of(), new Properties());
+		String b = CachedPrepareStep.computeKey(CachedPrepareStep.class, new String[]{"a", "bc"}, List.of(), new Properties());
+
+		Assertions.assertNotEquals(a, b);
+	}
+}
@@ -0,0 +1,121 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.facilities.MatsimFacilitiesReader;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+class MergeShardsTest {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void restoresInputOrder() {
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		for (int i = 0; i < 200; i++) {
+			Person person = population.getFactory().createPerson(Id.createPersonId("p" + i));
+			Plan plan = population.getFactory().createPlan();
+			plan.addActivity(population.getFactory().createActivityFromCoord("home", new Coord(i, i)));
+			person.addPlan(plan);
+			population.addPerson(person);
+		}
+		String input = dir.resolve("input.xml.gz").toString();
+		PopulationUtils.writePopulation(population, input);
+
+		List<String> args = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Population shard = PopulationUtils.readPopulation(input);
+			ShardOptions options = new ShardOptions();
+			options.setShard(i + "/3");
+			options.apply(shard);
+
+			String path = dir.resolve("shard" + i + ".xml.gz").toString();
+			PopulationUtils.writePopulation(shard, path);
+			args.add(path);
+		}
+		String output = dir.resolve("merged.xml.gz").toString();
+		args.addAll(List.of("--output", output));
+
+		run(args);
+
+		Population merged = PopulationUtils.readPopulation(output);
+		Assertions.assertEquals(List.copyOf(population.getPersons().keySet()), List.copyOf(merged.getPersons().keySet()));
+		Assertions.assertTrue(merged.getPersons().values().stream()
+			.allMatch(person -> person.getAttributes().getAttribute(ShardOptions.INPUT_INDEX_ATTRIBUTE) == null));
+	}
+
+	@Test
+	void keepsFacilityIds() {
+		String population = writeEmptyShard();
+		String shard0 = writeFacilities("facilities0.xml", List.of(facility("10_20", 1050, 2050, "l1", "home")));
+		String shard1 = writeFacilities("facilities1.xml", List.of(facility("10_20", 1050, 2050, "l1", "work"), facility("11_20", 1150, 2050, "l2", "home")));
+		String output = dir.resolve("facilities.xml").toString();
+
+		run(List.of(population, "--output", dir.resolve("merged.xml").toString(), "--facilities", shard0, shard1, "--output-facilities", output));
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		new MatsimFacilitiesReader(scenario).readFile(output);
+		ActivityFacilities merged = scenario.getActivityFacilities();
+
+		Assertions.assertEquals(Set.of(Id.create("10_20", ActivityFacility.class), Id.create("11_20", ActivityFacility.class)), merged.getFacilities().keySet());
+		Assertions.assertEquals(Set.of("home", "work"), merged.getFacilities().get(Id.create("10_20", ActivityFacility.class)).getActivityOptions().keySet());
+	}
+
+	@Test
+	void conflictingFacilities() {
+		String population = writeEmptyShard();
+		String shard0 = writeFacilities("facilities0.xml", List.of(facility("1", 0, 0, "l1", "home")));
+		String shard1 = writeFacilities("facilities1.xml", List.of(facility("1", 500, 0, "l2", "home")));
+
+		Assertions.assertThrows(IllegalStateException.class, () -> run(List.of(population, "--output", dir.resolve("merged.xml").toString(),
+			"--facilities", shard0, shard1, "--output-facilities", dir.resolve("facilities.xml").toString())));
+	}
+
+	private static void run(List<String> args) {
+		CommandLine cli = new CommandLine(new MergeShards());
+		cli.parseArgs(args.toArray(String[]::new));
+		((MergeShards) cli.getCommand()).call();
+	}
+
+	private String writeEmptyShard() {
+		String path = dir.resolve("shard.xml").toString();
+		PopulationUtils.writePopulation(PopulationUtils.createPopulation(ConfigUtils.createConfig()), path);
+		return path;
+	}
+
+	private String writeFacilities(String name, List<ActivityFacility> list) {
+		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+		list.forEach(facilities::addActivityFacility);
+		String path = dir.resolve(name).toString();
+		new FacilitiesWriter(facilities).write(path);
+		return path;
+	}
+
+	private static ActivityFacility facility(String id, double x, double y, String linkId, String type) {
+		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+		ActivityFacility facility = facilities.getFactory().createActivityFacility(Id.create(id, ActivityFacility.class), new Coord(x, y), Id.create(linkId, Link.class));
+		facility.addActivityOption(facilities.getFactory().createActivityOption(type));
+		return facility;
+	}
+}
@@ -0,0 +1,131 @@
+package org.matsim.run.pt;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.vsp.pt.fare.ChainedPtFareCalculator;
+import org.matsim.contrib.vsp.pt.fare.PtFareCalculator;
+import org.matsim.contrib.vsp.pt.fare.PtFareModule;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.run.scenarios.DresdenScenario;
+
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+class CachingPtFareCalculatorTest {
+
+	@TempDir
+	private Path dir;
+
+	private final AtomicInteger calls = new AtomicInteger();
+
+	/**
+	 * Fare depending on both coordinates, no fare for trips starting west of 0, like trips outside all fare zones.
+	 */
+	private final BiFunction<Coord, Coord, Optional<PtFareCalculator.FareResult>> chain = (from, to) -> {
+		calls.incrementAndGet();
+		return from.getX() < 0 ? Optional.empty() : Optional.of(new PtFareCalculator.FareResult(from.getX() + 10 * to.getY(), "vvo"));
+	};
+
+	@Test
+	void sameFaresAsChain() {
+		List<Coord> stops = new ArrayList<>();
+		for (int i = -2; i < 5; i++) {
+			stops.add(new Coord(i, i));
+		}
+		CachingPtFareCalculator cached = new CachingPtFareCalculator(stops, chain);
+
+		for (int round = 0; round < 3; round++) {
+			for (Coord from : stops) {
+				for (Coord to : stops) {
+					Assertions.assertEquals(chain.apply(from, to), cached.calculateFare(from, to));
+				}
+			}
+		}
+
+//		every stop pair is calculated once by the cache, and every time for the comparison
+		Assertions.assertEquals(stops.size() * stops.size() + 3 * stops.size() * stops.size(), calls.get());
+	}
+
+	@Test
+	void hitsAndMisses() {
+		Coord a = new Coord(1, 1);
+		Coord b = new Coord(2, 2);
+		CachingPtFareCalculator cached = new CachingPtFareCalculator(List.of(a, b, new Coord(1, 1)), chain);
+
+		cached.calculateFare(a, b);
+		cached.calculateFare(a, b);
+		cached.calculateFare(new Coord(1, 1), new Coord(2, 2));
+		Assertions.assertEquals(1, calls.get());
+
+		cached.calculateFare(b, a);
+		Assertions.assertEquals(2, calls.get());
+
+//		coordinates which are no stops are not cached
+		Coord other = new Coord(1.5, 1.5);
+		cached.calculateFare(a, other);
+		cached.calculateFare(a, other);
+		Assertions.assertEquals(4, calls.get());
+	}
+
+	/**
+	 * Compare with the chained calculator of the PtFareModule with the fares of the Dresden scenario,
+	 * for stops within VVO Tarifzone 10, outside of it, and more than 100 km away.
+	 */
+	@Test
+	void sameFaresAsDresdenChain() throws MalformedURLException {
+		Config config = ConfigUtils.createConfig();
+		config.setContext(Path.of("input", DresdenScenario.VERSION, String.format("dresden-%s-10pct.config.xml", DresdenScenario.VERSION)).toUri().toURL());
+		config.controller().setOutputDirectory(dir.toString());
+		config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.overwriteExistingFiles);
+		DresdenScenario.setPtFareParams(config);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		List<Coord> stops = List.of(
+			new Coord(834000, 5669000), new Coord(830000, 5665000), new Coord(838000, 5672000),
+			new Coord(825000, 5675000), new Coord(845000, 5660000),
+			new Coord(734000, 5690000), new Coord(797000, 5827000));
+		for (int i = 0; i < stops.size(); i++) {
+			schedule.addStopFacility(schedule.getFactory().createTransitStopFacility(Id.create(i, TransitStopFacility.class), stops.get(i), false));
+		}
+
+		ChainedPtFareCalculator uncached = Injector.createMinimalMatsimInjector(config, scenario, new PtFareModule())
+			.getInstance(ChainedPtFareCalculator.class);
+		ChainedPtFareCalculator cached = Injector.createMinimalMatsimInjector(config, scenario,
+				AbstractModule.override(List.of(new PtFareModule()), new PtFareCacheModule()))
+			.getInstance(ChainedPtFareCalculator.class);
+		Assertions.assertInstanceOf(CachingPtFareCalculator.class, cached);
+
+		Set<String> partners = new HashSet<>();
+		for (int round = 0; round < 2; round++) {
+			for (Coord from : stops) {
+				for (Coord to : stops) {
+					Optional<PtFareCalculator.FareResult> expected = uncached.calculateFare(from, to);
+					Assertions.assertEquals(expected, cached.calculateFare(from, to));
+					expected.ifPresent(fare -> partners.add(fare.transactionPartner()));
+				}
+			}
+		}
+
+//		both calculators of the chain have been used
+		Assertions.assertEquals(Set.of("VVO Tarifzone 10 Dresden", "Deutschlandtarif"), partners);
+	}
+}
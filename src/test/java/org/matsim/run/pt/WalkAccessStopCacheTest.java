@@ -0,0 +1,128 @@
+package org.matsim.run.pt;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStopFinder;
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class WalkAccessStopCacheTest {
+
+	@TempDir
+	private Path dir;
+
+	private static final Id<Link> LINK = Id.createLinkId("l");
+
+	@Test
+	void candidatesWithinRadius() {
+		Scenario scenario = createScenario(1000);
+		WalkAccessStopCache cache = new WalkAccessStopCache(scenario, null, new WalkAccessStopCache.Options(null, 100));
+
+		Assertions.assertEquals(List.of("s200", "s500", "s900"), ids(cache.getCandidateStops(new Coord(0, 0))),
+			"Unserved and distant stops must not be candidates");
+
+		ActivityFacility facility = scenario.getActivityFacilities().getFacilities().values().iterator().next();
+		Assertions.assertEquals(3, cache.findStops(facility, facility, null, 8 * 3600, null,
+			RaptorUtils.createParameters(scenario.getConfig()), null, RaptorStopFinder.Direction.ACCESS).size());
+	}
+
+	@Test
+	void extendRadiusIfLessThanTwoStops() {
+		WalkAccessStopCache cache = new WalkAccessStopCache(createScenario(300), null, new WalkAccessStopCache.Options(null, 100));
+
+//		only s200 is within 300 m, so the radius is extended to 200 m + 500 m
+		Assertions.assertEquals(List.of("s200", "s500"), ids(cache.getCandidateStops(new Coord(0, 0))));
+	}
+
+	@Test
+	void fileRoundTrip() {
+		Path file = dir.resolve("walk-access.bin");
+		WalkAccessStopCache written = new WalkAccessStopCache(createScenario(1000), null, new WalkAccessStopCache.Options(file, 100));
+		Assertions.assertTrue(Files.exists(file));
+
+		WalkAccessStopCache read = new WalkAccessStopCache(createScenario(1000), null, new WalkAccessStopCache.Options(file, 100));
+		Assertions.assertEquals(written.getCachedLocations(), read.getCachedLocations());
+		Assertions.assertEquals(ids(written.getCandidateStops(new Coord(0, 0))), ids(read.getCandidateStops(new Coord(0, 0))));
+
+//		moved stop must not use the distances of the file
+		Scenario moved = createScenario(1000);
+		moved.getTransitSchedule().getFacilities().get(Id.create("s900", TransitStopFacility.class)).setCoord(new Coord(100, 0));
+		WalkAccessStopCache recomputed = new WalkAccessStopCache(moved, null, new WalkAccessStopCache.Options(file, 100));
+		Assertions.assertEquals(List.of("s900", "s200", "s500"), ids(recomputed.getCandidateStops(new Coord(0, 0))));
+	}
+
+	@Test
+	void memoryBound() {
+		WalkAccessStopCache cache = new WalkAccessStopCache(createScenario(1000), null, new WalkAccessStopCache.Options(null, 0.0001));
+
+		Assertions.assertEquals(0, cache.getCachedLocations());
+		Assertions.assertEquals(List.of("s200", "s500", "s900"), ids(cache.getCandidateStops(new Coord(0, 0))));
+	}
+
+	/**
+	 * Stops at x = 200, 500, 900 and 5000 served by one route, and one unserved stop at x = 100. One facility at the origin.
+	 */
+	private static Scenario createScenario(double initialSearchRadius) {
+		Config config = ConfigUtils.createConfig();
+		config.transit().setUseTransit(true);
+
+		SwissRailRaptorConfigGroup srr = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class);
+		srr.setUseIntermodalAccessEgress(true);
+		SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet walk = new SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet();
+		walk.setMode(TransportMode.walk);
+		walk.setInitialSearchRadius(initialSearchRadius);
+		walk.setSearchExtensionRadius(500);
+		walk.setMaxRadius(10000);
+		srr.addIntermodalAccessEgress(walk);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+
+		List<TransitRouteStop> routeStops = new ArrayList<>();
+		for (int x : new int[]{200, 500, 900, 5000}) {
+			TransitStopFacility stop = f.createTransitStopFacility(Id.create("s" + x, TransitStopFacility.class), new Coord(x, 0), false);
+			stop.setLinkId(LINK);
+			schedule.addStopFacility(stop);
+			routeStops.add(f.createTransitRouteStop(stop, 0, 0));
+		}
+		TransitStopFacility unserved = f.createTransitStopFacility(Id.create("unserved", TransitStopFacility.class), new Coord(100, 0), false);
+		unserved.setLinkId(LINK);
+		schedule.addStopFacility(unserved);
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		TransitRoute route = f.createTransitRoute(Id.create("route", TransitRoute.class), RouteUtils.createLinkNetworkRouteImpl(LINK, LINK), routeStops, "bus");
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+
+		scenario.getActivityFacilities().addActivityFacility(scenario.getActivityFacilities().getFactory()
+			.createActivityFacility(Id.create("f", ActivityFacility.class), new Coord(0, 0), LINK));
+		return scenario;
+	}
+
+	private static List<String> ids(List<TransitStopFacility> stops) {
+		return stops.stream().map(s -> s.getId().toString()).toList();
+	}
+}
@@ -0,0 +1,94 @@
+package org.matsim.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+class PopulationStreamingUtilsTest {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void filterToGzip() {
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		for (int i = 0; i < 20_000; i++) {
+			Person person = population.getFactory().createPerson(Id.createPersonId(i));
+			Plan plan = population.getFactory().createPlan();
+			plan.addActivity(population.getFactory().createActivityFromCoord("home", new Coord(i, i)));
+			person.addPlan(plan);
+			person.getAttributes().putAttribute("subpopulation", "person");
+			population.addPerson(person);
+		}
+		String input = dir.resolve("input.xml").toString();
+		PopulationUtils.writePopulation(population, input);
+
+		String output = dir.resolve("output.xml.gz").toString();
+		PopulationStreamingUtils.filterPopulation(input, output, person -> Integer.parseInt(person.getId().toString()) % 2 == 0);
+
+//		read with the standard reader, which has to handle the gzip members of the parallel writer
+		Population read = PopulationUtils.readPopulation(output);
+		Assertions.assertEquals(10_000, read.getPersons().size());
+		Assertions.assertEquals(List.copyOf(read.getPersons().keySet()).getFirst(), Id.createPersonId(0));
+		Assertions.assertEquals("person", read.getPersons().get(Id.createPersonId(2)).getAttributes().getAttribute("subpopulation"));
+	}
+
+	@Test
+	void filterInPlace() throws IOException {
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		for (int i = 0; i < 1000; i++) {
+			Person person = population.getFactory().createPerson(Id.createPersonId(i));
+			Plan plan = population.getFactory().createPlan();
+			plan.addActivity(population.getFactory().createActivityFromCoord("home", new Coord(i, i)));
+			person.addPlan(plan);
+			population.addPerson(person);
+		}
+		String path = dir.resolve("population.xml.gz").toString();
+		PopulationUtils.writePopulation(population, path);
+
+//		output is the input, which must not be truncated before it is read
+		PopulationStreamingUtils.filterPopulation(path, path, person -> Integer.parseInt(person.getId().toString()) < 10);
+
+		Assertions.assertEquals(10, PopulationUtils.readPopulation(path).getPersons().size());
+//		the temporary file has been moved into place
+		try (Stream<Path> files = Files.list(dir)) {
+			Assertions.assertEquals(List.of(dir.resolve("population.xml.gz")), files.toList());
+		}
+	}
+
+	@Test
+	void parallelGzipRoundTrip() throws IOException {
+		byte[] data = new byte[5 * (1 << 20) + 123];
+		new Random(0).nextBytes(data);
+
+		Path file = dir.resolve("data.gz");
+		try (OutputStream out = GzipPopulationIO.openOutput(file)) {
+			out.write(data, 0, 1000);
+			out.write(data, 1000, data.length - 1000);
+		}
+
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+			Assertions.assertArrayEquals(data, in.readAllBytes());
+		}
+		try (InputStream in = GzipPopulationIO.openInput(file)) {
+			Assertions.assertArrayEquals(data, in.readAllBytes());
+		}
+	}
+}
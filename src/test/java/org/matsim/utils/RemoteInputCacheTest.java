@@ -0,0 +1,130 @@
+package org.matsim.utils;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RemoteInputCacheTest {
+
+	@TempDir
+	private Path dir;
+
+	private HttpServer server;
+	private String url;
+	private volatile String content = "first version";
+	private volatile int errorStatus;
+	private boolean stopped;
+	private final AtomicInteger fullResponses = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/input.txt", exchange -> {
+			if (errorStatus > 0) {
+				exchange.sendResponseHeaders(errorStatus, -1);
+				exchange.close();
+				return;
+			}
+			String etag = "\"" + content.hashCode() + "\"";
+			if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+			byte[] body = content.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("ETag", etag);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+			fullResponses.incrementAndGet();
+		});
+		server.start();
+		url = "http://localhost:" + server.getAddress().getPort() + "/input.txt";
+	}
+
+	@AfterEach
+	void stopServer() {
+		if (!stopped) {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void revalidate() throws IOException {
+		RemoteInputCache cache = new RemoteInputCache(dir, false);
+
+		Path first = cache.resolve(Set.of(url)).get(url);
+		Assertions.assertEquals("first version", Files.readString(first));
+		Assertions.assertEquals(1, fullResponses.get());
+
+		Assertions.assertEquals(first, cache.resolve(Set.of(url)).get(url));
+		Assertions.assertEquals(1, fullResponses.get());
+		Assertions.assertEquals(1, notModified.get());
+
+		content = "second version";
+		Path second = cache.resolve(Set.of(url)).get(url);
+		Assertions.assertEquals("second version", Files.readString(second));
+		Assertions.assertEquals(2, fullResponses.get());
+		Assertions.assertTrue(second.getFileName().toString().endsWith("input.txt"), "File name must be kept");
+	}
+
+	@Test
+	void replaceCorruptFile() throws IOException {
+		RemoteInputCache cache = new RemoteInputCache(dir, false);
+		Path file = cache.resolve(Set.of(url)).get(url);
+
+		Files.writeString(file, "corrupt");
+
+		Assertions.assertEquals("first version", Files.readString(cache.resolve(Set.of(url)).get(url)));
+		Assertions.assertEquals(2, fullResponses.get());
+	}
+
+	@Test
+	void offline() throws IOException {
+		Assertions.assertThrows(IllegalStateException.class, () -> new RemoteInputCache(dir, true).resolve(Set.of(url)));
+
+		Path file = new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url);
+		Assertions.assertEquals(file, new RemoteInputCache(dir, true).resolve(Set.of(url)).get(url));
+		Assertions.assertEquals(0, notModified.get(), "Offline mode must not contact the server");
+
+		Files.writeString(file, "corrupt");
+		Assertions.assertThrows(IllegalStateException.class, () -> new RemoteInputCache(dir, true).resolve(Set.of(url)));
+	}
+
+	@Test
+	void serverErrorUsesVerifiedFile() throws IOException {
+		Path file = new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url);
+
+		errorStatus = 503;
+		Assertions.assertEquals(file, new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url));
+
+//		without a cached file, the error is not hidden
+		Files.writeString(file, "corrupt");
+		Assertions.assertThrows(IllegalStateException.class, () -> new RemoteInputCache(dir, false).resolve(Set.of(url)));
+	}
+
+	@Test
+	void unreachableServerUsesVerifiedFile() throws IOException {
+		Path file = new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url);
+
+		server.stop(0);
+		stopped = true;
+		Assertions.assertEquals("first version", Files.readString(new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url)));
+		Assertions.assertEquals(file, new RemoteInputCache(dir, false).resolve(Set.of(url)).get(url));
+	}
+}
@@ -0,0 +1,92 @@
+package org.matsim.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.ActivityOption;
+import org.matsim.facilities.OpeningTimeImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+class ScenarioSnapshotTest {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void roundTrip() throws IOException {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Network network = scenario.getNetwork();
+		Node a = network.getFactory().createNode(Id.createNodeId("a"), new Coord(0, 0));
+		Node b = network.getFactory().createNode(Id.createNodeId("b"), new Coord(100, 0, 5));
+		network.addNode(a);
+		network.addNode(b);
+		Link link = network.getFactory().createLink(Id.createLinkId("ab"), a, b);
+		link.setLength(100);
+		link.setFreespeed(13.9);
+		link.setCapacity(600);
+		link.setNumberOfLanes(1);
+		link.setAllowedModes(Set.of("car", "ride"));
+		link.getAttributes().putAttribute("type", "highway.primary");
+		link.getAttributes().putAttribute("lanes", 2);
+		network.addLink(link);
+
+		ActivityFacilities facilities = scenario.getActivityFacilities();
+		ActivityFacility facility = facilities.getFactory().createActivityFacility(Id.create("f", ActivityFacility.class), new Coord(50, 10), link.getId());
+		ActivityOption option = facilities.getFactory().createActivityOption("work");
+		option.setCapacity(10);
+		option.addOpeningTime(new OpeningTimeImpl(8 * 3600, 17 * 3600));
+		facility.addActivityOption(option);
+		facilities.addActivityFacility(facility);
+
+		Path path = dir.resolve("snapshot.bin");
+		ScenarioSnapshot.Source source = new ScenarioSnapshot.Source("network.xml.gz", "abc", "facilities.xml.gz", null, "EPSG:25832");
+		ScenarioSnapshot.write(path, scenario, true, source);
+
+		Assertions.assertEquals(source, ScenarioSnapshot.readSource(path));
+
+		Scenario read = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Assertions.assertTrue(ScenarioSnapshot.read(path, read));
+
+		Link readLink = read.getNetwork().getLinks().get(link.getId());
+		Assertions.assertEquals(100, readLink.getLength());
+		Assertions.assertEquals(13.9, readLink.getFreespeed());
+		Assertions.assertEquals(600, readLink.getCapacity());
+		Assertions.assertEquals(Set.of("car", "ride"), readLink.getAllowedModes());
+		Assertions.assertEquals("highway.primary", readLink.getAttributes().getAttribute("type"));
+		Assertions.assertEquals(2, readLink.getAttributes().getAttribute("lanes"));
+		Assertions.assertEquals(new Coord(100, 0, 5), readLink.getToNode().getCoord());
+
+		ActivityFacility readFacility = read.getActivityFacilities().getFacilities().get(facility.getId());
+		Assertions.assertEquals(new Coord(50, 10), readFacility.getCoord());
+		Assertions.assertEquals(link.getId(), readFacility.getLinkId());
+		Assertions.assertEquals(10, readFacility.getActivityOptions().get("work").getCapacity());
+		Assertions.assertEquals(1, readFacility.getActivityOptions().get("work").getOpeningTimes().size());
+	}
+
+	@Test
+	void sourceMismatch() throws IOException {
+		Path network = Files.writeString(dir.resolve("network.xml"), "network");
+		Path facilities = Files.writeString(dir.resolve("facilities.xml"), "facilities");
+
+		ScenarioSnapshot.Source source = ScenarioSnapshot.Source.of(network.toUri().toURL(), facilities.toUri().toURL(), "EPSG:25832");
+		Assertions.assertTrue(source.matches(ScenarioSnapshot.Source.of(network.toUri().toURL(), facilities.toUri().toURL(), "EPSG:25832")));
+		Assertions.assertFalse(source.matches(ScenarioSnapshot.Source.of(network.toUri().toURL(), facilities.toUri().toURL(), "EPSG:4326")));
+
+		Files.writeString(network, "regenerated network");
+		Assertions.assertFalse(source.matches(ScenarioSnapshot.Source.of(network.toUri().toURL(), facilities.toUri().toURL(), "EPSG:25832")));
+	}
+}